@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.omniwearhaptics.api;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring of motor frames in memory shared between OmniWearHelper (the single writer) and
+ * OmniWearService (the single reader), so frames can be streamed without a binder call each.
+ *
+ * Every frame is a full set of intensities, so the reader only ever needs the newest one.
+ * Each slot carries the sequence number of the frame in it; the reader checks the number
+ * before and after copying a slot and retries if the writer lapped it in between. The reader
+ * is in another process than the writer and can't trust the memory, so it only retries a few
+ * times per call, and gives up on memory no FrameRing writer could have left.
+ *
+ * A reader with nothing to read for a while can wait instead of polling: park() raises a
+ * flag in the header, and the writer's next write() clears it and tells its caller to wake
+ * the reader. Each side writes its own side of the handshake, fences, then reads the other's,
+ * so either the reader sees the frame or the writer sees the flag.
+ *
+ * Layout: header (magic, newest sequence number, reader waiting flag), then SLOT_COUNT slots
+ * of (sequence number, frame length, frame bytes).
+ *
+ * The Java memory model says nothing about memory shared with another process, and a
+ * java.util.concurrent primitive only orders accesses within one process's heap. So the
+ * ordering here rests on how ART compiles volatile accesses: a volatile write followed by a
+ * volatile read is a full fence on every architecture ART supports, and fence() is exactly
+ * that. This is an ART implementation detail, not a language guarantee.
+ */
+public class FrameRing {
+
+    // Largest frame, in motors.
+    public static final int MAX_FRAME = 16;
+
+    // Returned by readLatest for memory a FrameRing writer can't have left. Stop reading.
+    public static final int CORRUPT = -2;
+
+    // Slots the reader tries per readLatest before leaving it for the next call.
+    private static final int MAX_READ_ATTEMPTS = 4;
+
+    private static final int MAGIC = 0x4f574652; // "OWFR"
+    private static final int SLOT_COUNT = 16;
+    private static final int SLOT_SIZE = 32;
+    private static final int HEADER_SIZE = 32;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int WRITE_SEQ_OFFSET = 8;
+    private static final int READER_WAITING_OFFSET = 16;
+    private static final int SLOT_SEQ_OFFSET = 0;
+    private static final int SLOT_LENGTH_OFFSET = 8;
+    private static final int SLOT_FRAME_OFFSET = 9;
+
+    // Number of bytes to share.
+    public static final int SIZE = HEADER_SIZE + SLOT_COUNT * SLOT_SIZE;
+
+    private final ByteBuffer mBuffer;
+
+    // Writer: newest frame written. Reader: newest frame read.
+    private long mSeq;
+
+    // Frames the reader never saw because a newer one had already arrived.
+    private long mSkippedCount = 0;
+
+    // Only accessed by fence().
+    private volatile int mFence;
+
+    public FrameRing(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mSeq = buffer.getLong(WRITE_SEQ_OFFSET);
+    }
+
+    // Prepare freshly shared memory. Called once by the side that creates it.
+    public static void format(ByteBuffer buffer) {
+        for (int i = 0; i < SIZE; i++) {
+            buffer.put(i, (byte) 0);
+        }
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+    }
+
+    // Check the memory was formatted by a compatible FrameRing.
+    public boolean isValid() {
+        return mBuffer.capacity() >= SIZE && mBuffer.getInt(MAGIC_OFFSET) == MAGIC;
+    }
+
+    // Publish a frame. Frames longer than MAX_FRAME are truncated. Returns true if the reader
+    // was waiting for a frame; the caller then wakes it.
+    public boolean write(byte[] frame) {
+
+        long seq = mSeq + 1;
+        int slot = slotOffset(seq);
+        int length = Math.min(frame.length, MAX_FRAME);
+
+        // Mark the slot as being written, fill it, then publish it.
+        mBuffer.putLong(slot + SLOT_SEQ_OFFSET, 0);
+        fence();
+        mBuffer.put(slot + SLOT_LENGTH_OFFSET, (byte) length);
+        for (int i = 0; i < length; i++) {
+            mBuffer.put(slot + SLOT_FRAME_OFFSET + i, frame[i]);
+        }
+        fence();
+        mBuffer.putLong(slot + SLOT_SEQ_OFFSET, seq);
+        mBuffer.putLong(WRITE_SEQ_OFFSET, seq);
+        mSeq = seq;
+
+        fence();
+        if (mBuffer.getInt(READER_WAITING_OFFSET) == 0) {
+            return false;
+        }
+        mBuffer.putInt(READER_WAITING_OFFSET, 0);
+        return true;
+    }
+
+    // Copy the newest unread frame into out (at least MAX_FRAME long). Returns its length,
+    // -1 if there is nothing new or no frame could be read consistently this time, or
+    // CORRUPT.
+    public int readLatest(byte[] out) {
+
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long seq = mBuffer.getLong(WRITE_SEQ_OFFSET);
+            if (seq == mSeq) {
+                return -1;
+            }
+
+            // The writer's sequence number only grows.
+            if (seq < mSeq) {
+                return CORRUPT;
+            }
+            int slot = slotOffset(seq);
+            if (mBuffer.getLong(slot + SLOT_SEQ_OFFSET) != seq) {
+                continue;
+            }
+            fence();
+            int length = mBuffer.get(slot + SLOT_LENGTH_OFFSET) & 0xff;
+            if (length > MAX_FRAME) {
+                return CORRUPT;
+            }
+            for (int i = 0; i < length; i++) {
+                out[i] = mBuffer.get(slot + SLOT_FRAME_OFFSET + i);
+            }
+            fence();
+
+            // Lapped by the writer while copying - try again with the newer frame.
+            if (mBuffer.getLong(slot + SLOT_SEQ_OFFSET) != seq) {
+                continue;
+            }
+            mSkippedCount += seq - mSeq - 1;
+            mSeq = seq;
+            return length;
+        }
+        return -1;
+    }
+
+    // Reader: ask to be woken by the writer's next frame. Returns false if a frame arrived
+    // meanwhile; read it rather than wait.
+    public boolean park() {
+        mBuffer.putInt(READER_WAITING_OFFSET, 1);
+        fence();
+        if (mBuffer.getLong(WRITE_SEQ_OFFSET) != mSeq) {
+            mBuffer.putInt(READER_WAITING_OFFSET, 0);
+            return false;
+        }
+        return true;
+    }
+
+    public long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    // A full fence on ART: no buffer access before it is reordered with one after it. See the
+    // class comment. Callers ignore the result.
+    private int fence() {
+        mFence = 0;
+        return mFence;
+    }
+
+    private static int slotOffset(long seq) {
+        return HEADER_SIZE + (int) (seq % SLOT_COUNT) * SLOT_SIZE;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.omniwearhaptics.api;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * What the link to a device was tuned to after connecting, and how long connecting took.
+ *
+ * Android doesn't report the connection interval before API 26, so it is estimated from the
+ * fastest acknowledged write seen: a write and its response can't complete in less than one
+ * connection event. The interval is the floor on how quickly a motor command can land.
+ */
+public class LinkInfo implements Parcelable {
+
+    // Value for anything not known yet.
+    public static final int UNKNOWN = -1;
+
+    // Whether CONNECTION_PRIORITY_HIGH was accepted by the stack.
+    public final boolean highPriority;
+
+    // MTU that was asked for and the one that was agreed, in bytes.
+    public final int requestedMtu;
+    public final int mtu;
+
+    // Estimated connection interval in microseconds, or UNKNOWN before any acknowledged write.
+    public final int intervalEstimateUs;
+
+    // Time from the connect request to the device being ready, and the attempt that got
+    // there, counting from 1. Both UNKNOWN until the device is ready.
+    public final long connectTimeMs;
+    public final int connectAttempts;
+
+    public LinkInfo(boolean highPriority, int requestedMtu, int mtu, int intervalEstimateUs,
+                    long connectTimeMs, int connectAttempts) {
+        this.highPriority = highPriority;
+        this.requestedMtu = requestedMtu;
+        this.mtu = mtu;
+        this.intervalEstimateUs = intervalEstimateUs;
+        this.connectTimeMs = connectTimeMs;
+        this.connectAttempts = connectAttempts;
+    }
+
+    private LinkInfo(Parcel in) {
+        highPriority = in.readInt() != 0;
+        requestedMtu = in.readInt();
+        mtu = in.readInt();
+        intervalEstimateUs = in.readInt();
+        connectTimeMs = in.readLong();
+        connectAttempts = in.readInt();
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeInt(highPriority ? 1 : 0);
+        out.writeInt(requestedMtu);
+        out.writeInt(mtu);
+        out.writeInt(intervalEstimateUs);
+        out.writeLong(connectTimeMs);
+        out.writeInt(connectAttempts);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "LinkInfo{highPriority=" + highPriority + ", mtu=" + mtu + "/" + requestedMtu +
+                ", intervalEstimateUs=" + intervalEstimateUs + ", connectTimeMs=" + connectTimeMs +
+                ", connectAttempts=" + connectAttempts + "}";
+    }
+
+    public static final Parcelable.Creator<LinkInfo> CREATOR = new Parcelable.Creator<LinkInfo>() {
+        @Override
+        public LinkInfo createFromParcel(Parcel in) {
+            return new LinkInfo(in);
+        }
+
+        @Override
+        public LinkInfo[] newArray(int size) {
+            return new LinkInfo[size];
+        }
+    };
+}
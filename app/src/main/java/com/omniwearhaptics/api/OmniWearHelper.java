@@ -21,10 +21,17 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
 
 /**
  * Public facing API for interacting with OmniWear devices.
@@ -41,6 +48,11 @@ public class OmniWearHelper {
 	public static final int DEVICETYPE_NECKBAND = 8;
 	public static final int DEVICETYPE_WRISTBAND = 1;
 
+    // Device handles. DEVICE_PRIMARY addresses the device last connected with
+    // connectToKnownDevice or found by searchForOmniWearDevice.
+    public static final int DEVICE_NONE = -1;
+    public static final int DEVICE_PRIMARY = 0;
+
     // Events
     public static final int EVENT_STATE_NONE = 0;
     public static final int EVENT_STATE_SEARCHING = 1;
@@ -69,6 +81,12 @@ public class OmniWearHelper {
     // Motor off constant.
     public static final byte OFF =          0x0;
 
+    // Command priorities. Urgent commands, e.g. warnings, go ahead of everything else, and a
+    // motor an urgent command turned on ignores ambient commands until one turns it off.
+    // Patterns, envelopes, frames and directions are ambient.
+    public static final int PRIORITY_AMBIENT = 0;
+    public static final int PRIORITY_URGENT = 1;
+
     // Permissions.
     public static final int MY_PERMISSIONS_REQUEST_FINE_LOCATION = 1;
 
@@ -76,15 +94,25 @@ public class OmniWearHelper {
 	private ServiceConnection mServiceConnection;
 	private Context mParent;
 	private IOmniWear mOmniWearInterface;
+    private IOmniWearUrgentChannel mUrgentChannel;
+    private FrameRing mFrameRing;
+
+    // Lowest priority of service log lines to receive (an android.util.Log level).
+    private int mLogLevel = Log.INFO;
 
     // Callback functions that the client app implements.
     private OnOmniWearEventListener mOnOmniWearEventListener;
     private OnOmniWearLogListener mOnOmniWearLogListener;
+    private OnOmniWearDeviceEventListener mOnOmniWearDeviceEventListener;
 
     public interface OnOmniWearEventListener {
         void OnOmniWearEvent(int event);
     }
 
+    public interface OnOmniWearDeviceEventListener {
+        void OnOmniWearDeviceEvent(int deviceHandle, int event);
+    }
+
     public interface OnOmniWearLogListener {
         void OnOmniWearLog(int priority, String tag, String msg);
     }
@@ -96,7 +124,27 @@ public class OmniWearHelper {
         }
 
         public void onOmniWearLog(int priority, String tag, String msg) throws RemoteException {
-            mOnOmniWearLogListener.OnOmniWearLog(priority, tag, msg);
+            OnOmniWearLogListener listener = mOnOmniWearLogListener;
+            if (listener != null) {
+                listener.OnOmniWearLog(priority, tag, msg);
+            }
+        }
+
+        public void onOmniWearDeviceEvent(int deviceHandle, int event) throws RemoteException {
+            OnOmniWearDeviceEventListener listener = mOnOmniWearDeviceEventListener;
+            if (listener != null) {
+                listener.OnOmniWearDeviceEvent(deviceHandle, event);
+            }
+        }
+
+        public void onOmniWearLogBatch(int[] priorities, String[] tags, String[] msgs) throws RemoteException {
+            OnOmniWearLogListener listener = mOnOmniWearLogListener;
+            if (listener == null) {
+                return;
+            }
+            for (int i = 0; i < priorities.length; i++) {
+                listener.OnOmniWearLog(priorities[i], tags[i], msgs[i]);
+            }
         }
     };
 
@@ -124,7 +172,8 @@ public class OmniWearHelper {
                 if (mCallback != null) {
                     try {
                         if (mOmniWearInterface != null) {
-                            mOmniWearInterface.registerCallback(mCallback);
+                            mOmniWearInterface.registerClient(mCallback, mLogLevel);
+                            mUrgentChannel = mOmniWearInterface.getUrgentChannel();
                             mCallback.onOmniWearEvent(EVENT_SERVICE_BOUND);
                         }
                     } catch (RemoteException e) {
@@ -135,12 +184,12 @@ public class OmniWearHelper {
                 }
 			}
 
+            // The service died, and everything it held for us with it. Frames go through
+            // setMotors until a new stream is opened.
 			public void onServiceDisconnected(ComponentName name) {
-                try {
-                    mOmniWearInterface.unregisterCallback();
-                } catch (RemoteException e) {
-                    e.printStackTrace();
-                }
+                mFrameRing = null;
+                mUrgentChannel = null;
+                mOmniWearInterface = null;
 			}
 		};
 		context.bindService(intent, mServiceConnection,
@@ -149,16 +198,47 @@ public class OmniWearHelper {
 
 	public void shutdown() {
 
+        closeFrameStream();
         disconnect();
+
+        // Other apps may still be using the service - stop getting their events.
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.unregisterClient(mCallback);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
 		if (mServiceConnection != null) {
 			mOmniWearInterface = null;
+            mUrgentChannel = null;
 			mParent.unbindService(mServiceConnection);
 			mServiceConnection = null;
             mOnOmniWearEventListener = null;
             mOnOmniWearLogListener = null;
+            mOnOmniWearDeviceEventListener = null;
 		}
 	}
 
+    // Set the lowest priority (an android.util.Log level) of service log lines to receive.
+    // Lines below it are never built or sent by the service.
+    public void setLogLevel(int minLogLevel) {
+
+        mLogLevel = minLogLevel;
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.setLogLevel(mCallback, minLogLevel);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Get events for every device, not just the primary one.
+    public void setOnOmniWearDeviceEventListener(OnOmniWearDeviceEventListener listener) {
+        mOnOmniWearDeviceEventListener = listener;
+    }
+
     public void disconnect() {
 
         if (mOmniWearInterface != null) {
@@ -194,18 +274,561 @@ public class OmniWearHelper {
         }
     }
 
+    // Connect to another OmniWear device alongside any already connected. Returns the handle
+    // used to address it, or DEVICE_NONE.
+    public int connectDevice(String deviceMAC) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                return mOmniWearInterface.connectDevice(deviceMAC);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+        return DEVICE_NONE;
+    }
+
+    // Set how long each direct connection attempt may take before it is retried. After a few
+    // attempts the service falls back to a background connection with no timeout.
+    public void setConnectTimeout(int timeoutMs) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.setConnectTimeout(timeoutMs);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Disconnect one device.
+    public void disconnectDevice(int deviceHandle) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.disconnectDevice(deviceHandle);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Handles of all connected or connecting devices.
+    public int[] getDeviceHandles() {
+
+        if (mOmniWearInterface != null) {
+            try {
+                return mOmniWearInterface.getDeviceHandles();
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+        return new int[0];
+    }
+
+    // One of the EVENT_STATE_ constants.
+    public int getDeviceState(int deviceHandle) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                return mOmniWearInterface.getDeviceState(deviceHandle);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+        return EVENT_STATE_NONE;
+    }
+
+    // How the link to the primary device was tuned, or null if there is none.
+    public LinkInfo getLinkInfo() {
+        return getLinkInfo(DEVICE_PRIMARY);
+    }
+
+    public LinkInfo getLinkInfo(int deviceHandle) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                return mOmniWearInterface.getLinkInfo(deviceHandle);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    // Command latency and throughput for the primary device, or null if there is none.
+    public OmniWearStats getStats() {
+        return getStats(DEVICE_PRIMARY);
+    }
+
+    public OmniWearStats getStats(int deviceHandle) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                return mOmniWearInterface.getStats(deviceHandle);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    // Start the stats over, e.g. before a measurement run.
+    public void resetStats(int deviceHandle) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.resetStats(deviceHandle);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
 	public void setMotor(byte motorId, byte intensity) {
+        setMotor(DEVICE_PRIMARY, motorId, intensity);
+    }
+
+	public void setMotor(int deviceHandle, byte motorId, byte intensity) {
 
 		if (mOmniWearInterface != null){
 			try {
-				mOmniWearInterface.setMotor(motorId, intensity);
+				mOmniWearInterface.setDeviceMotor(deviceHandle, motorId, intensity, SystemClock.elapsedRealtimeNanos());
 			} catch (RemoteException e) {
 				e.printStackTrace();
 			}
 		}		
 	}
 
+    // Set a motor in the given lane, PRIORITY_AMBIENT or PRIORITY_URGENT. setMotor is ambient.
+    public void setMotorWithPriority(byte motorId, byte intensity, int priority) {
+        setMotorWithPriority(DEVICE_PRIMARY, motorId, intensity, priority);
+    }
+
+    public void setMotorWithPriority(int deviceHandle, byte motorId, byte intensity, int priority) {
+
+        if (priority == PRIORITY_AMBIENT) {
+            setMotor(deviceHandle, motorId, intensity);
+            return;
+        }
+        if (priority != PRIORITY_URGENT) {
+            Log.w(TAG, "setMotorWithPriority: invalid priority " + priority);
+            return;
+        }
+
+        // Urgent commands have a binder object of their own, so they don't queue behind
+        // ambient ones.
+        IOmniWearUrgentChannel channel = mUrgentChannel;
+        if (channel != null) {
+            try {
+                channel.setMotor(deviceHandle, motorId, intensity, SystemClock.elapsedRealtimeNanos());
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Set every motor at once. intensities is indexed by motor ID; only motors that changed
+    // are sent to the device.
+    public void setMotors(byte[] intensities) {
+        setMotors(DEVICE_PRIMARY, intensities);
+    }
+
+    public void setMotors(int deviceHandle, byte[] intensities) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.setMotors(deviceHandle, intensities, SystemClock.elapsedRealtimeNanos());
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Point the device at a direction: azimuth in degrees clockwise from the front, elevation
+    // in degrees up from the horizon. The service picks and weights the motors for the
+    // device's layout and turns off the rest.
+    public void setDirection(float azimuth, float elevation, byte intensity) {
+        setDirection(DEVICE_PRIMARY, azimuth, elevation, intensity);
+    }
+
+    public void setDirection(int deviceHandle, float azimuth, float elevation, byte intensity) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.setDirection(deviceHandle, azimuth, elevation, intensity, SystemClock.elapsedRealtimeNanos());
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Set up shared memory for streaming frames with writeFrame. Returns false if it couldn't
+    // be set up, in which case writeFrame falls back to setMotors.
+    public boolean openFrameStream() {
+        return openFrameStream(DEVICE_PRIMARY);
+    }
+
+    public boolean openFrameStream(int deviceHandle) {
+
+        if (mOmniWearInterface == null) {
+            return false;
+        }
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = mOmniWearInterface.openFrameRing(mCallback, deviceHandle);
+            if (pfd == null) {
+                return false;
+            }
+
+            // Map the service's memory through our copy of its descriptor.
+            RandomAccessFile file = new RandomAccessFile("/proc/self/fd/" + pfd.getFd(), "rw");
+            try {
+                FrameRing ring = new FrameRing(file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FrameRing.SIZE));
+                if (!ring.isValid()) {
+                    Log.w(TAG, "Frame stream memory is not valid");
+                    return false;
+                }
+                mFrameRing = ring;
+                return true;
+            } finally {
+                file.close();
+            }
+        } catch (RemoteException | IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (pfd != null) {
+                try {
+                    pfd.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Stream a frame of intensities indexed by motor ID. Call from one thread only.
+    public void writeFrame(byte[] intensities) {
+
+        FrameRing ring = mFrameRing;
+        if (ring != null) {
+
+            // The service's reader stops polling once frames stop; the first new one wakes it.
+            if (ring.write(intensities) && mOmniWearInterface != null) {
+                try {
+                    mOmniWearInterface.wakeFrameRing(mCallback);
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            }
+        } else {
+            setMotors(intensities);
+        }
+    }
+
+    // Stop streaming frames through shared memory.
+    public void closeFrameStream() {
+
+        if (mFrameRing == null) {
+            return;
+        }
+        mFrameRing = null;
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.closeFrameRing(mCallback);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Play a pattern in the service. Keyframe i sets motorIds[i] to intensities[i] at
+    // offsetsMs[i] after the start; the last offset is the length of one loop.
+    public void playKeyframes(byte[] motorIds, byte[] intensities, int[] offsetsMs, boolean loop) {
+        playKeyframes(DEVICE_PRIMARY, motorIds, intensities, offsetsMs, loop);
+    }
+
+    public void playKeyframes(int deviceHandle, byte[] motorIds, byte[] intensities, int[] offsetsMs, boolean loop) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.playKeyframes(deviceHandle, motorIds, intensities, offsetsMs, loop);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Stop the playing pattern and turn off the motors it uses.
+    public void stopKeyframes() {
+        stopKeyframes(DEVICE_PRIMARY);
+    }
+
+    public void stopKeyframes(int deviceHandle) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.stopKeyframes(deviceHandle);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Register a pattern with the service so it can be played by handle, without sending it
+    // again each time. Keyframes are as for playKeyframes. Returns the pattern's handle, or
+    // -1 on error. Patterns stay registered until unregisterPattern or unbind.
+    public int registerPattern(byte[] motorIds, byte[] intensities, int[] offsetsMs) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                return mOmniWearInterface.registerPattern(mCallback, motorIds, intensities, offsetsMs);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+        return -1;
+    }
+
+    // Register a pattern loaded with loadPatternFile.
+    public int registerCachedPattern(String name) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                return mOmniWearInterface.registerCachedPattern(mCallback, name);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+        return -1;
+    }
+
+    public void unregisterPattern(int patternHandle) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.unregisterPattern(mCallback, patternHandle);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Play a registered pattern, replacing whatever pattern is playing.
+    public void playPattern(int patternHandle, boolean loop) {
+        playPattern(DEVICE_PRIMARY, patternHandle, loop);
+    }
+
+    public void playPattern(int deviceHandle, int patternHandle, boolean loop) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.playPattern(mCallback, deviceHandle, patternHandle, loop);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Stop a registered pattern, if it is the one playing, and turn off the motors it uses.
+    public void stopPattern(int patternHandle) {
+        stopPattern(DEVICE_PRIMARY, patternHandle);
+    }
+
+    public void stopPattern(int deviceHandle, int patternHandle) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.stopPattern(mCallback, deviceHandle, patternHandle);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Load a pattern file (see PatternFile for the format) into the service's cache under
+    // name. Returns false if the file couldn't be read or isn't a valid pattern.
+    public boolean loadPatternFile(String name, File patternFile) {
+
+        if (mOmniWearInterface != null) {
+            ParcelFileDescriptor pfd = null;
+            try {
+                pfd = ParcelFileDescriptor.open(patternFile, ParcelFileDescriptor.MODE_READ_ONLY);
+                return mOmniWearInterface.loadPatternFile(name, pfd);
+            } catch (IOException | RemoteException e) {
+                e.printStackTrace();
+            } finally {
+                if (pfd != null) {
+                    try {
+                        pfd.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // Whether a pattern is in the service's cache. Cached patterns can be evicted to make
+    // room for others, so check before playing one that hasn't been used in a while.
+    public boolean isPatternCached(String name) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                return mOmniWearInterface.isPatternCached(name);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+        return false;
+    }
+
+    // Play a pattern loaded with loadPatternFile.
+    public void playCachedPattern(String name, boolean loop) {
+        playCachedPattern(DEVICE_PRIMARY, name, loop);
+    }
+
+    public void playCachedPattern(int deviceHandle, String name, boolean loop) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.playCachedPattern(deviceHandle, name, loop);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Milliseconds into the playing pattern, or -1 if none is playing.
+    public int getKeyframeProgress() {
+        return getKeyframeProgress(DEVICE_PRIMARY);
+    }
+
+    public int getKeyframeProgress(int deviceHandle) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                return mOmniWearInterface.getKeyframeProgress(deviceHandle);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+        return -1;
+    }
+
+    // Fade a motor from one intensity to another over durationMs. The service interpolates
+    // and only writes when the intensity changes.
+    public void rampMotor(byte motorId, byte fromIntensity, byte toIntensity, int durationMs) {
+        rampMotor(DEVICE_PRIMARY, motorId, fromIntensity, toIntensity, durationMs);
+    }
+
+    public void rampMotor(int deviceHandle, byte motorId, byte fromIntensity, byte toIntensity, int durationMs) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.rampMotor(deviceHandle, motorId, fromIntensity, toIntensity, durationMs);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Play an attack/decay/sustain/release shape on one motor: up to peak over attackMs, down
+    // to sustain over decayMs, hold for sustainMs, then off over releaseMs.
+    public void playEnvelope(byte motorId, byte peak, byte sustain, int attackMs, int decayMs, int sustainMs, int releaseMs) {
+        playEnvelope(DEVICE_PRIMARY, motorId, peak, sustain, attackMs, decayMs, sustainMs, releaseMs);
+    }
+
+    public void playEnvelope(int deviceHandle, byte motorId, byte peak, byte sustain,
+                             int attackMs, int decayMs, int sustainMs, int releaseMs) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.playEnvelope(deviceHandle, motorId, peak, sustain, attackMs, decayMs, sustainMs, releaseMs);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Stop every envelope and turn off the motors they were driving.
+    public void stopEnvelopes() {
+        stopEnvelopes(DEVICE_PRIMARY);
+    }
+
+    public void stopEnvelopes(int deviceHandle) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.stopEnvelopes(deviceHandle);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // How many times a second envelopes are sampled. Higher is smoother but costs more writes.
+    public void setEnvelopeTickRate(int deviceHandle, int ticksPerSecond) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.setEnvelopeTickRate(deviceHandle, ticksPerSecond);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Commands that set a motor to the intensity it already has aren't sent. Rewrite every
+    // motor's current intensity anyway, e.g. if the device may have reset.
+    public void forceRefresh() {
+        forceRefresh(DEVICE_PRIMARY);
+    }
+
+    public void forceRefresh(int deviceHandle) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.forceRefresh(deviceHandle);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Send motor commands without waiting for each one to be acknowledged. Lower latency for
+    // continuous effects; commands that turn a motor off are still acknowledged.
+    public void setStreamingMode(boolean enabled) {
+        setStreamingMode(DEVICE_PRIMARY, enabled);
+    }
+
+    public void setStreamingMode(int deviceHandle, boolean enabled) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                mOmniWearInterface.setStreamingMode(deviceHandle, enabled);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     // Read the device type using BT.
+    public int getDeviceType(int deviceHandle) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                return mOmniWearInterface.getDeviceType(deviceHandle);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+        return DEVICETYPE_ERROR;
+    }
+
+    // Read the device type of the primary device.
     public int getConnectedDeviceType() {
 
         if (mOmniWearInterface != null) {
@@ -218,6 +841,19 @@ public class OmniWearHelper {
         return DEVICETYPE_ERROR;
     }
 
+    // Return the MAC of a device.
+    public String getDeviceMAC(int deviceHandle) {
+
+        if (mOmniWearInterface != null) {
+            try {
+                return mOmniWearInterface.getDeviceMAC(deviceHandle);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+        return "";
+    }
+
     // Return the MAC of the connected device.
     public String getConnectedDeviceMAC() {
 
@@ -0,0 +1,164 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.api;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Command latency and throughput for one device, since it connected or since resetStats.
+ *
+ * Latencies are split into stages, each with a p50, p99 and max in microseconds:
+ *   STAGE_BINDER - client call to the service receiving it.
+ *   STAGE_QUEUE  - service receiving it to the GATT write being submitted.
+ *   STAGE_LINK   - GATT write submitted to onCharacteristicWrite. For acknowledged writes this
+ *                  is the device's acknowledgement; streamed writes only reach the controller.
+ *   STAGE_TOTAL  - client call to onCharacteristicWrite.
+ * Commands that came from a pattern or the frame ring start at the service, so they have no
+ * binder stage and their total is measured from the service.
+ */
+public class OmniWearStats implements Parcelable {
+
+    public static final int STAGE_BINDER = 0;
+    public static final int STAGE_QUEUE = 1;
+    public static final int STAGE_LINK = 2;
+    public static final int STAGE_TOTAL = 3;
+    public static final int STAGE_COUNT = 4;
+
+    // Per stage, indexed by the STAGE_ constants.
+    private final long[] mSamples;
+    private final long[] mP50Us;
+    private final long[] mP99Us;
+    private final long[] mMaxUs;
+
+    // Counters.
+    public final long commandsReceived;
+    public final long writesSubmitted;
+    public final long writesFailed;
+    public final long coalesced;
+    public final long suppressed;
+    public final long dropped;
+
+    // Writes per second the service currently thinks the link can take. Ambient commands are
+    // paced to it.
+    public final double rateLimit;
+
+    // How long the counters have been running.
+    public final long elapsedMs;
+
+    public OmniWearStats(long[] samples, long[] p50Us, long[] p99Us, long[] maxUs, long commandsReceived,
+                         long writesSubmitted, long writesFailed, long coalesced, long suppressed, long dropped,
+                         double rateLimit, long elapsedMs) {
+        mSamples = samples;
+        mP50Us = p50Us;
+        mP99Us = p99Us;
+        mMaxUs = maxUs;
+        this.commandsReceived = commandsReceived;
+        this.writesSubmitted = writesSubmitted;
+        this.writesFailed = writesFailed;
+        this.coalesced = coalesced;
+        this.suppressed = suppressed;
+        this.dropped = dropped;
+        this.rateLimit = rateLimit;
+        this.elapsedMs = elapsedMs;
+    }
+
+    private OmniWearStats(Parcel in) {
+        mSamples = in.createLongArray();
+        mP50Us = in.createLongArray();
+        mP99Us = in.createLongArray();
+        mMaxUs = in.createLongArray();
+        commandsReceived = in.readLong();
+        writesSubmitted = in.readLong();
+        writesFailed = in.readLong();
+        coalesced = in.readLong();
+        suppressed = in.readLong();
+        dropped = in.readLong();
+        rateLimit = in.readDouble();
+        elapsedMs = in.readLong();
+    }
+
+    public long getSamples(int stage) {
+        return mSamples[stage];
+    }
+
+    public long getP50Us(int stage) {
+        return mP50Us[stage];
+    }
+
+    public long getP99Us(int stage) {
+        return mP99Us[stage];
+    }
+
+    public long getMaxUs(int stage) {
+        return mMaxUs[stage];
+    }
+
+    // Writes handed to the stack per second.
+    public double getWritesPerSecond() {
+        return elapsedMs == 0 ? 0 : writesSubmitted * 1000.0 / elapsedMs;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeLongArray(mSamples);
+        out.writeLongArray(mP50Us);
+        out.writeLongArray(mP99Us);
+        out.writeLongArray(mMaxUs);
+        out.writeLong(commandsReceived);
+        out.writeLong(writesSubmitted);
+        out.writeLong(writesFailed);
+        out.writeLong(coalesced);
+        out.writeLong(suppressed);
+        out.writeLong(dropped);
+        out.writeDouble(rateLimit);
+        out.writeLong(elapsedMs);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("OmniWearStats{");
+        String[] names = {"binder", "queue", "link", "total"};
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            sb.append(names[i]).append('=').append(mP50Us[i]).append('/').append(mP99Us[i])
+                    .append('/').append(mMaxUs[i]).append("us, ");
+        }
+        sb.append("received=").append(commandsReceived)
+                .append(", submitted=").append(writesSubmitted)
+                .append(", failed=").append(writesFailed)
+                .append(", coalesced=").append(coalesced)
+                .append(", suppressed=").append(suppressed)
+                .append(", dropped=").append(dropped)
+                .append(", rateLimit=").append(rateLimit)
+                .append(", elapsedMs=").append(elapsedMs).append('}');
+        return sb.toString();
+    }
+
+    public static final Parcelable.Creator<OmniWearStats> CREATOR = new Parcelable.Creator<OmniWearStats>() {
+        @Override
+        public OmniWearStats createFromParcel(Parcel in) {
+            return new OmniWearStats(in);
+        }
+
+        @Override
+        public OmniWearStats[] newArray(int size) {
+            return new OmniWearStats[size];
+        }
+    };
+}
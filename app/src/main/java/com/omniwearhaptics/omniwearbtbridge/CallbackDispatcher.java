@@ -0,0 +1,354 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.omniwearhaptics.omniwearbtbridge;
+
+import com.omniwearhaptics.api.IOmniWearCallback;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Delivers events to every registered client on a thread of its own, so a slow or dead
+ * client never blocks GATT callbacks or the command path. Events reach each client in the
+ * order they were posted.
+ *
+ * Log lines are only forwarded to clients that asked for their level, and are sent in
+ * batches rather than one transaction per line. Clients registered through the original
+ * registerCallback get lines at INFO and above, one transaction each, and no device events,
+ * which their callback interface does not have.
+ */
+class CallbackDispatcher {
+
+    // Largest batch of log lines, and how long a line may wait for others to join it.
+    private static final int LOG_BATCH_SIZE = 64;
+    private static final long LOG_BATCH_DELAY_MS = 100;
+
+    // Nothing is at or above this level.
+    private static final int NO_LOG_LEVEL = Integer.MAX_VALUE;
+
+    // Clients, each with its Client as the cookie.
+    private final RemoteCallbackList<IOmniWearCallback> mCallbacks = new RemoteCallbackList<IOmniWearCallback>() {
+        @Override
+        public void onCallbackDied(IOmniWearCallback callback, Object cookie) {
+            removeClient(callback);
+        }
+    };
+
+    // Clients by binder, and the lowest log level any of them wants.
+    private final Map<IBinder, Client> mClients = new HashMap<>();
+    private volatile int mMinLogLevel = NO_LOG_LEVEL;
+
+    // Log lines waiting to be sent.
+    private final Object mLogLock = new Object();
+    private final int[] mLogPriorities = new int[LOG_BATCH_SIZE];
+    private final String[] mLogTags = new String[LOG_BATCH_SIZE];
+    private final String[] mLogMsgs = new String[LOG_BATCH_SIZE];
+    private int mLogCount = 0;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // What the dispatcher knows about one client.
+    private static class Client {
+
+        final IOmniWearCallback mCallback;
+        final int mLogLevel;
+
+        // Registered through the original registerCallback, from process mPid.
+        final boolean mLegacy;
+        final int mPid;
+
+        Client(IOmniWearCallback callback, int logLevel, boolean legacy, int pid) {
+            mCallback = callback;
+            mLogLevel = logLevel;
+            mLegacy = legacy;
+            mPid = pid;
+        }
+    }
+
+    // One event, sent to each client in turn.
+    private abstract class Broadcast implements Runnable {
+
+        abstract void deliver(IOmniWearCallback callback, Client client) throws RemoteException;
+
+        @Override
+        public void run() {
+            int count = mCallbacks.beginBroadcast();
+            try {
+                for (int i = 0; i < count; i++) {
+                    try {
+                        deliver(mCallbacks.getBroadcastItem(i), (Client) mCallbacks.getBroadcastCookie(i));
+                    } catch (RemoteException e) {
+                        // The client died - RemoteCallbackList will remove it.
+                    }
+                }
+            } finally {
+                mCallbacks.finishBroadcast();
+            }
+        }
+    }
+
+    // A batch of log lines. Each client gets the lines at or above its level.
+    private class LogBatch extends Broadcast {
+
+        private final int[] mPriorities;
+        private final String[] mTags;
+        private final String[] mMsgs;
+
+        LogBatch(int[] priorities, String[] tags, String[] msgs) {
+            mPriorities = priorities;
+            mTags = tags;
+            mMsgs = msgs;
+        }
+
+        @Override
+        void deliver(IOmniWearCallback callback, Client client) throws RemoteException {
+
+            int logLevel = client.mLogLevel;
+            if (client.mLegacy) {
+                for (int i = 0; i < mPriorities.length; i++) {
+                    if (mPriorities[i] >= logLevel) {
+                        callback.onOmniWearLog(mPriorities[i], mTags[i], mMsgs[i]);
+                    }
+                }
+                return;
+            }
+
+            int count = 0;
+            for (int priority : mPriorities) {
+                if (priority >= logLevel) {
+                    count++;
+                }
+            }
+            if (count == 0) {
+                return;
+            }
+            if (count == mPriorities.length) {
+                callback.onOmniWearLogBatch(mPriorities, mTags, mMsgs);
+                return;
+            }
+
+            // Filter for this client.
+            int[] priorities = new int[count];
+            String[] tags = new String[count];
+            String[] msgs = new String[count];
+            int j = 0;
+            for (int i = 0; i < mPriorities.length; i++) {
+                if (mPriorities[i] >= logLevel) {
+                    priorities[j] = mPriorities[i];
+                    tags[j] = mTags[i];
+                    msgs[j] = mMsgs[i];
+                    j++;
+                }
+            }
+            callback.onOmniWearLogBatch(priorities, tags, msgs);
+        }
+    }
+
+    // Sends the log lines collected so far.
+    private final Runnable mFlushLogs = new Runnable() {
+        @Override
+        public void run() {
+            LogBatch batch;
+            synchronized (mLogLock) {
+                batch = takeLogBatch();
+            }
+            if (batch != null) {
+                batch.run();
+            }
+        }
+    };
+
+    CallbackDispatcher() {
+        mThread = new HandlerThread("OmniWearCallbacks");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    // Register a client, or change the log level of one already registered.
+    void register(IOmniWearCallback callback, int minLogLevel) {
+        addClient(new Client(callback, minLogLevel, false, 0));
+    }
+
+    // Register a client of the original interface from process pid. It gets log lines at
+    // INFO and above, like a client registered at the helper's default level.
+    void registerLegacy(IOmniWearCallback callback, int pid) {
+        addClient(new Client(callback, Log.INFO, true, pid));
+    }
+
+    // Change the log level of a client, registering it if it isn't.
+    void setLogLevel(IOmniWearCallback callback, int minLogLevel) {
+        Client client;
+        synchronized (mClients) {
+            client = mClients.get(callback.asBinder());
+        }
+        if (client == null) {
+            register(callback, minLogLevel);
+        } else {
+            addClient(new Client(callback, minLogLevel, client.mLegacy, client.mPid));
+        }
+    }
+
+    void unregister(IOmniWearCallback callback) {
+        mCallbacks.unregister(callback);
+        removeClient(callback);
+    }
+
+    // Unregister the clients process pid registered through the original registerCallback,
+    // which unregisters without saying which callback. Returns how many there were.
+    int unregisterLegacy(int pid) {
+        List<IOmniWearCallback> callbacks = new ArrayList<>();
+        synchronized (mClients) {
+            for (Client client : mClients.values()) {
+                if (client.mLegacy && client.mPid == pid) {
+                    callbacks.add(client.mCallback);
+                }
+            }
+        }
+        for (IOmniWearCallback callback : callbacks) {
+            unregister(callback);
+        }
+        return callbacks.size();
+    }
+
+    // Whether any client wants log lines at this level. Check before building the message.
+    boolean isLoggable(int priority) {
+        return priority >= mMinLogLevel;
+    }
+
+    void postEvent(final int event) {
+        postPendingLogs();
+        mHandler.post(new Broadcast() {
+            @Override
+            void deliver(IOmniWearCallback callback, Client client) throws RemoteException {
+                callback.onOmniWearEvent(event);
+            }
+        });
+    }
+
+    void postDeviceEvent(final int deviceHandle, final int event) {
+        postPendingLogs();
+        mHandler.post(new Broadcast() {
+            @Override
+            void deliver(IOmniWearCallback callback, Client client) throws RemoteException {
+                if (!client.mLegacy) {
+                    callback.onOmniWearDeviceEvent(deviceHandle, event);
+                }
+            }
+        });
+    }
+
+    // Queue a log line for the next batch.
+    void postLog(int priority, String tag, String msg) {
+
+        if (priority < mMinLogLevel) {
+            return;
+        }
+        LogBatch full = null;
+        synchronized (mLogLock) {
+            if (mLogCount == 0) {
+                mHandler.postDelayed(mFlushLogs, LOG_BATCH_DELAY_MS);
+            }
+            mLogPriorities[mLogCount] = priority;
+            mLogTags[mLogCount] = tag;
+            mLogMsgs[mLogCount] = msg;
+            mLogCount++;
+            if (mLogCount == LOG_BATCH_SIZE) {
+                full = takeLogBatch();
+            }
+        }
+        if (full != null) {
+            mHandler.post(full);
+        }
+    }
+
+    // Drop all clients and stop the thread once pending events are delivered.
+    void close() {
+        postPendingLogs();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCallbacks.kill();
+            }
+        });
+        mThread.quitSafely();
+    }
+
+    // Send waiting log lines ahead of an event, so clients see them in order.
+    private void postPendingLogs() {
+        LogBatch batch;
+        synchronized (mLogLock) {
+            batch = takeLogBatch();
+        }
+        if (batch != null) {
+            mHandler.post(batch);
+        }
+    }
+
+    // Take the waiting log lines as a batch, or null if there are none. Caller holds mLogLock.
+    private LogBatch takeLogBatch() {
+
+        if (mLogCount == 0) {
+            return null;
+        }
+        mHandler.removeCallbacks(mFlushLogs);
+        int[] priorities = new int[mLogCount];
+        String[] tags = new String[mLogCount];
+        String[] msgs = new String[mLogCount];
+        System.arraycopy(mLogPriorities, 0, priorities, 0, mLogCount);
+        System.arraycopy(mLogTags, 0, tags, 0, mLogCount);
+        System.arraycopy(mLogMsgs, 0, msgs, 0, mLogCount);
+        for (int i = 0; i < mLogCount; i++) {
+            mLogTags[i] = null;
+            mLogMsgs[i] = null;
+        }
+        mLogCount = 0;
+        return new LogBatch(priorities, tags, msgs);
+    }
+
+    private void addClient(Client client) {
+        mCallbacks.unregister(client.mCallback);
+        mCallbacks.register(client.mCallback, client);
+        synchronized (mClients) {
+            mClients.put(client.mCallback.asBinder(), client);
+            updateMinLogLevel();
+        }
+    }
+
+    private void removeClient(IOmniWearCallback callback) {
+        synchronized (mClients) {
+            mClients.remove(callback.asBinder());
+            updateMinLogLevel();
+        }
+    }
+
+    // Caller holds the mClients lock.
+    private void updateMinLogLevel() {
+        int minLogLevel = NO_LOG_LEVEL;
+        for (Client client : mClients.values()) {
+            minLogLevel = Math.min(minLogLevel, client.mLogLevel);
+        }
+        mMinLogLevel = minLogLevel;
+    }
+}
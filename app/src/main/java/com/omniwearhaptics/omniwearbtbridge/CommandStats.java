@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.omniwearbtbridge;
+
+import com.omniwearhaptics.api.OmniWearStats;
+import com.omniwearhaptics.core.LatencyHistogram;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms and throughput counters for the commands sent to one device.
+ *
+ * Timestamps are SystemClock.elapsedRealtimeNanos(), which is the same clock in every
+ * process, so a client's call time can be compared with the service's.
+ */
+class CommandStats {
+
+    private final LatencyHistogram[] mStages = new LatencyHistogram[OmniWearStats.STAGE_COUNT];
+    private final AtomicLong mCommandsReceived = new AtomicLong();
+    private final AtomicLong mWritesSubmitted = new AtomicLong();
+    private final AtomicLong mWritesFailed = new AtomicLong();
+    private volatile long mStartTime = SystemClock.elapsedRealtime();
+
+    CommandStats() {
+        for (int i = 0; i < mStages.length; i++) {
+            mStages[i] = new LatencyHistogram();
+        }
+    }
+
+    void commandReceived() {
+        mCommandsReceived.incrementAndGet();
+    }
+
+    void binderTransit(long clientTime, long receiveTime) {
+        mStages[OmniWearStats.STAGE_BINDER].record((receiveTime - clientTime) / 1000);
+    }
+
+    void writeSubmitted(long receiveTime, long submitTime) {
+        mWritesSubmitted.incrementAndGet();
+        mStages[OmniWearStats.STAGE_QUEUE].record((submitTime - receiveTime) / 1000);
+    }
+
+    void writeCompleted(long clientTime, long submitTime, long completeTime) {
+        mStages[OmniWearStats.STAGE_LINK].record((completeTime - submitTime) / 1000);
+        mStages[OmniWearStats.STAGE_TOTAL].record((completeTime - clientTime) / 1000);
+    }
+
+    void writeFailed() {
+        mWritesFailed.incrementAndGet();
+    }
+
+    void reset() {
+        for (LatencyHistogram stage : mStages) {
+            stage.reset();
+        }
+        mCommandsReceived.set(0);
+        mWritesSubmitted.set(0);
+        mWritesFailed.set(0);
+        mStartTime = SystemClock.elapsedRealtime();
+    }
+
+    OmniWearStats snapshot(long coalesced, long suppressed, long dropped, double rateLimit) {
+        long[] samples = new long[mStages.length];
+        long[] p50 = new long[mStages.length];
+        long[] p99 = new long[mStages.length];
+        long[] max = new long[mStages.length];
+        for (int i = 0; i < mStages.length; i++) {
+            samples[i] = mStages[i].getCount();
+            p50[i] = mStages[i].getPercentile(0.5);
+            p99[i] = mStages[i].getPercentile(0.99);
+            max[i] = mStages[i].getMax();
+        }
+        return new OmniWearStats(samples, p50, p99, max, mCommandsReceived.get(), mWritesSubmitted.get(),
+                mWritesFailed.get(), coalesced, suppressed, dropped, rateLimit,
+                SystemClock.elapsedRealtime() - mStartTime);
+    }
+}
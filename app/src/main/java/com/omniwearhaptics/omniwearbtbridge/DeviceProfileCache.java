@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.omniwearhaptics.omniwearbtbridge;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.List;
+
+/**
+ * What we learned about each device the last time we connected to it, kept across restarts
+ * and keyed by MAC. Lets a reconnect skip reading the device type.
+ *
+ * A profile is only trusted if the device's services still match the fingerprint taken when
+ * it was saved.
+ */
+class DeviceProfileCache {
+
+    private static final String PREFS_NAME = "OmniWearDeviceProfiles";
+    private static final String SEPARATOR = "|";
+
+    static class Profile {
+        final int deviceType;
+        final int motorCount;
+        final String firmwareRevision;
+        final String fingerprint;
+
+        Profile(int deviceType, int motorCount, String firmwareRevision, String fingerprint) {
+            this.deviceType = deviceType;
+            this.motorCount = motorCount;
+            this.firmwareRevision = firmwareRevision;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+
+    DeviceProfileCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, 0);
+    }
+
+    // Returns the saved profile, or null if there is none.
+    Profile get(String mac) {
+
+        String value = mPrefs.getString(mac, null);
+        if (value == null) {
+            return null;
+        }
+
+        // deviceType|motorCount|fingerprint|firmwareRevision
+        String[] fields = value.split("\\" + SEPARATOR, 4);
+        if (fields.length != 4) {
+            invalidate(mac);
+            return null;
+        }
+        try {
+            return new Profile(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), fields[3], fields[2]);
+        } catch (NumberFormatException e) {
+            invalidate(mac);
+            return null;
+        }
+    }
+
+    void put(String mac, Profile profile) {
+        mPrefs.edit()
+                .putString(mac, profile.deviceType + SEPARATOR + profile.motorCount + SEPARATOR +
+                        profile.fingerprint + SEPARATOR + profile.firmwareRevision)
+                .apply();
+    }
+
+    void invalidate(String mac) {
+        mPrefs.edit().remove(mac).apply();
+    }
+
+    // Summarize the discovered services and characteristics, so a changed GATT layout (e.g.
+    // new firmware) is noticed.
+    static String fingerprint(List<BluetoothGattService> services) {
+        int hash = 1;
+        for (BluetoothGattService service : services) {
+            hash = 31 * hash + service.getUuid().hashCode();
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                hash = 31 * hash + characteristic.getUuid().hashCode();
+                hash = 31 * hash + characteristic.getProperties();
+            }
+        }
+        return Integer.toHexString(hash);
+    }
+}
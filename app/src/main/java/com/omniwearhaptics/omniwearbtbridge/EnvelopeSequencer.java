@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.omniwearbtbridge;
+
+import com.omniwearhaptics.core.Envelope;
+import com.omniwearhaptics.core.EnvelopeEngine;
+import com.omniwearhaptics.core.KeyframeTimeline;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Plays intensity envelopes on a Handler, so a fade costs the client one binder call instead
+ * of one per step. The {@link EnvelopeEngine} decides what changed; this class only keeps the
+ * clock.
+ */
+class EnvelopeSequencer {
+
+    private final Handler mHandler;
+    private final KeyframeTimeline.Listener mListener;
+    private final EnvelopeEngine mEngine;
+    private final int mMaxMotors;
+
+    private final Runnable mStep = new Runnable() {
+        @Override
+        public void run() {
+            step();
+        }
+    };
+
+    EnvelopeSequencer(Handler handler, int maxMotors, KeyframeTimeline.Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+        mEngine = new EnvelopeEngine(maxMotors);
+        mMaxMotors = maxMotors;
+    }
+
+    synchronized void setTickRate(int ticksPerSecond) {
+        mEngine.setTickRate(ticksPerSecond);
+    }
+
+    // Start an envelope on a motor, replacing any already playing there. Returns false if the
+    // motor is out of range.
+    synchronized boolean play(int motorId, Envelope envelope) {
+        if (!mEngine.start(motorId, envelope, SystemClock.uptimeMillis())) {
+            return false;
+        }
+        mHandler.removeCallbacks(mStep);
+        step();
+        return true;
+    }
+
+    // Stop every envelope. Returns the motors that were playing one, or an empty array.
+    synchronized byte[] stop() {
+        mHandler.removeCallbacks(mStep);
+        int count = 0;
+        byte[] motors = new byte[mMaxMotors];
+        for (int motor = 0; motor < motors.length; motor++) {
+            if (mEngine.isPlaying(motor)) {
+                motors[count++] = (byte) motor;
+            }
+        }
+        mEngine.reset();
+        byte[] stopped = new byte[count];
+        System.arraycopy(motors, 0, stopped, 0, count);
+        return stopped;
+    }
+
+    // Report whatever changed, then schedule the next change.
+    private synchronized void step() {
+        long next = mEngine.advance(SystemClock.uptimeMillis(), mListener);
+        if (next >= 0) {
+            mHandler.postAtTime(mStep, next);
+        }
+    }
+}
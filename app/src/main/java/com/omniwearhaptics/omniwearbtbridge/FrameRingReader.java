@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.omniwearhaptics.omniwearbtbridge;
+
+import com.omniwearhaptics.api.FrameRing;
+
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Service side of one client's shared-memory frame transport. Creates the memory shared with
+ * the client and runs the single thread that consumes frames from it. See
+ * {@link FrameRingRegistry} for how rings are tied to clients.
+ *
+ * The memory is an unlinked file in the service's cache directory, mapped by both
+ * processes; the client gets it as a ParcelFileDescriptor.
+ *
+ * The thread polls while frames keep coming. Once the client has gone quiet it parks the
+ * ring and waits for wake(), which the client asks for with its next frame, so an open but
+ * unused ring costs no wakeups.
+ */
+class FrameRingReader {
+
+    private static final String TAG = "FrameRingReader";
+
+    // How often to look for a new frame, and how long without one before waiting for wake().
+    private static final long POLL_INTERVAL_MS = 2;
+    private static final long IDLE_AFTER_MS = 1000;
+
+    // Receives frames on the reader thread. onCorrupt is called instead, once, if the client
+    // left the memory in a state no FrameRing writer could, and no more frames are read.
+    interface Listener {
+        void onFrame(byte[] frame, int length);
+        void onCorrupt();
+    }
+
+    private final Listener mListener;
+    private RandomAccessFile mFile = null;
+    private Thread mThread = null;
+    private volatile boolean mRunning = false;
+
+    // Set by wake() for the thread waiting on it.
+    private final Object mWakeLock = new Object();
+    private boolean mWoken = false;
+
+    FrameRingReader(Listener listener) {
+        mListener = listener;
+    }
+
+    // Create the shared memory if needed, start reading and return a descriptor for the client.
+    synchronized ParcelFileDescriptor open(File directory) throws IOException {
+
+        if (mFile == null) {
+            File file = File.createTempFile("frames", null, directory);
+            try {
+                mFile = new RandomAccessFile(file, "rw");
+            } finally {
+                // Only the open descriptors keep the memory alive.
+                if (!file.delete()) {
+                    Log.w(TAG, "Could not unlink " + file);
+                }
+            }
+            mFile.setLength(FrameRing.SIZE);
+            MappedByteBuffer buffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FrameRing.SIZE);
+            FrameRing.format(buffer);
+            start(new FrameRing(buffer));
+        }
+        return ParcelFileDescriptor.dup(mFile.getFD());
+    }
+
+    // Stop reading and release the memory.
+    synchronized void close() {
+
+        mRunning = false;
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close frame memory: " + e.getMessage());
+            }
+            mFile = null;
+        }
+    }
+
+    // The client wrote a frame while the thread was parked.
+    void wake() {
+        synchronized (mWakeLock) {
+            mWoken = true;
+            mWakeLock.notify();
+        }
+    }
+
+    private void start(final FrameRing ring) {
+
+        mRunning = true;
+        mThread = new Thread("OmniWearFrameReader") {
+
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+                byte[] frame = new byte[FrameRing.MAX_FRAME];
+                long lastFrameTime = System.currentTimeMillis();
+                while (mRunning) {
+                    int length = ring.readLatest(frame);
+                    if (length == FrameRing.CORRUPT) {
+                        Log.w(TAG, "Frame ring is corrupt - closing it.");
+                        mListener.onCorrupt();
+                        return;
+                    }
+                    long now = System.currentTimeMillis();
+                    if (length >= 0) {
+                        mListener.onFrame(frame, length);
+                        lastFrameTime = now;
+                    }
+                    try {
+                        if (length < 0 && now - lastFrameTime > IDLE_AFTER_MS && ring.park()) {
+                            synchronized (mWakeLock) {
+                                while (!mWoken) {
+                                    mWakeLock.wait();
+                                }
+                                mWoken = false;
+                            }
+                            lastFrameTime = System.currentTimeMillis();
+                        } else {
+                            Thread.sleep(POLL_INTERVAL_MS);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        mThread.start();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.omniwearhaptics.omniwearbtbridge;
+
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The frame rings of all clients. Each client streams through a ring of its own, so every
+ * ring keeps its single writer, and closing one client's stream leaves the others running.
+ * A ring belongs to the client that opened it and is closed when that client closes it or
+ * dies, which also stops its reader thread.
+ *
+ * Thread safe.
+ */
+class FrameRingRegistry {
+
+    // Receives frames on the reader thread of the client that streamed them.
+    interface Listener {
+        void onFrame(int deviceHandle, byte[] frame, int length);
+    }
+
+    private final Listener mListener;
+    private final Map<IBinder, Client> mClients = new HashMap<>();
+
+    // The ring of one client, and the device its frames are for.
+    private class Client implements IBinder.DeathRecipient, FrameRingReader.Listener {
+
+        final IBinder mBinder;
+        final FrameRingReader mReader = new FrameRingReader(this);
+        volatile int mDeviceHandle;
+
+        Client(IBinder binder) {
+            mBinder = binder;
+        }
+
+        @Override
+        public void binderDied() {
+            close(mBinder);
+        }
+
+        @Override
+        public void onFrame(byte[] frame, int length) {
+            mListener.onFrame(mDeviceHandle, frame, length);
+        }
+
+        @Override
+        public void onCorrupt() {
+            close(mBinder);
+        }
+    }
+
+    FrameRingRegistry(Listener listener) {
+        mListener = listener;
+    }
+
+    // Open a client's ring in directory, or point an open one at another device. Returns a
+    // descriptor for the client, or null if the client is already dead.
+    synchronized ParcelFileDescriptor open(IBinder owner, int deviceHandle, File directory) throws IOException {
+        Client client = mClients.get(owner);
+        if (client == null) {
+            client = new Client(owner);
+            try {
+                owner.linkToDeath(client, 0);
+            } catch (RemoteException e) {
+                return null;
+            }
+            mClients.put(owner, client);
+        }
+        client.mDeviceHandle = deviceHandle;
+        try {
+            return client.mReader.open(directory);
+        } catch (IOException e) {
+            close(owner);
+            throw e;
+        }
+    }
+
+    // Wake a client's reader after the client wrote to a parked ring. Returns false if it
+    // has no ring.
+    synchronized boolean wake(IBinder owner) {
+        Client client = mClients.get(owner);
+        if (client == null) {
+            return false;
+        }
+        client.mReader.wake();
+        return true;
+    }
+
+    // Close a client's ring. Returns false if it has none.
+    synchronized boolean close(IBinder owner) {
+        Client client = mClients.remove(owner);
+        if (client == null) {
+            return false;
+        }
+        owner.unlinkToDeath(client, 0);
+        client.mReader.close();
+        return true;
+    }
+
+    synchronized void closeAll() {
+        List<IBinder> owners = new ArrayList<>(mClients.keySet());
+        for (IBinder owner : owners) {
+            close(owner);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.omniwearbtbridge;
+
+import com.omniwearhaptics.core.HapticTransport;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+/**
+ * {@link HapticTransport} over a GATT connection's haptic characteristic.
+ *
+ * Completions come from the connection's BluetoothGattCallback, which passes them on
+ * through onCharacteristicWrite.
+ */
+class GattTransport implements HapticTransport {
+
+    private final BluetoothGatt mGatt;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private volatile Listener mListener = null;
+
+    GattTransport(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        mGatt = gatt;
+        mCharacteristic = characteristic;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public boolean canWriteWithoutResponse() {
+        return (mCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+    }
+
+    @Override
+    public boolean write(byte[] packet, boolean acknowledged) {
+        mCharacteristic.setValue(packet);
+        mCharacteristic.setWriteType(acknowledged ?
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        return mGatt.writeCharacteristic(mCharacteristic);
+    }
+
+    // A write to the haptic characteristic finished.
+    void onCharacteristicWrite(int status) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onWriteComplete(status == BluetoothGatt.GATT_SUCCESS);
+        }
+    }
+}
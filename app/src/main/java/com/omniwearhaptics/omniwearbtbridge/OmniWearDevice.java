@@ -0,0 +1,882 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.omniwearhaptics.omniwearbtbridge;
+
+import com.omniwearhaptics.api.LinkInfo;
+import com.omniwearhaptics.api.OmniWearHelper;
+import com.omniwearhaptics.api.OmniWearStats;
+import com.omniwearhaptics.core.AimdRateController;
+import com.omniwearhaptics.core.Clock;
+import com.omniwearhaptics.core.CommandPipeline;
+import com.omniwearhaptics.core.ConnectionStateMachine;
+import com.omniwearhaptics.core.DirectionRenderer;
+import com.omniwearhaptics.core.Envelope;
+import com.omniwearhaptics.core.HapticTransport;
+import com.omniwearhaptics.core.KeyframePattern;
+import com.omniwearhaptics.core.KeyframeTimeline;
+import com.omniwearhaptics.core.MotorCommand;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.UUID;
+
+/**
+ * One OmniWear device the service is connected or connecting to: its GATT connection,
+ * characteristic handles, command queue and state.
+ *
+ * Each device has its own pipeline, so a slow link on one wearable doesn't hold up writes
+ * to another.
+ *
+ * Everything that touches the GATT connection runs on the service's BLE handler: the GATT
+ * callbacks are handed over to it as they arrive, and connect() and close() must be called on
+ * it. Binder threads only add commands to the queue and ask the handler to send them.
+ */
+class OmniWearDevice {
+
+    private static final String TAG = "OmniWearDevice";
+
+    // Constants from the firmware.
+    static final String HAPTIC_SERVICE_UUID = "99700001-ad20-11e6-8000-00805F9B34FB";
+    private static final String HAPTIC_CHARACTERISTIC_UUID = "99700002-ad20-11e6-8000-00805F9B34FB";
+    private static final String DEVICE_INFO_SERVICE_UUID = "0000180a-0000-1000-8000-00805F9B34FB";
+    private static final String OMNIWEAR_DEVICE_TYPE_CHARACTERISTIC_UUID = "00002a24-0000-1000-8000-00805F9B34FB";
+    private static final String FIRMWARE_REVISION_CHARACTERISTIC_UUID = "00002a26-0000-1000-8000-00805F9B34FB";
+
+    // Connecting: a few direct (autoConnect=false) attempts, each with a timeout and with an
+    // exponential backoff between them, then background connections. Waiting for a background
+    // connection has no timeout, but setting one up once the link is there does.
+    static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    private static final int DIRECT_CONNECT_ATTEMPTS = 3;
+    private static final long RECONNECT_BACKOFF_MS = 500;
+
+    // Link tuning. 247 bytes is the largest MTU that fits a single LE data packet.
+    private static final int DEFAULT_MTU = 23;
+    private static final int DESIRED_MTU = 247;
+
+    // The interval estimate is the fastest acknowledged write in each window of this many.
+    private static final int INTERVAL_WINDOW = 32;
+
+    // Events from the device. State changes are delivered on the handler, log lines on
+    // whichever thread they happen on.
+    interface Listener {
+        void onStateChanged(OmniWearDevice device, int newState);
+        boolean isLoggable(int priority);
+        void onLog(int priority, String tag, String msg);
+    }
+
+    private final int mHandle;
+    private final BluetoothDevice mDevice;
+    private final Listener mListener;
+    private final DeviceProfileCache mProfileCache;
+    private final Handler mHandler;
+
+    // State and BlueTooth fields.
+    private BluetoothGatt mBluetoothGatt = null;
+    private BluetoothGattService mHapticService = null;
+    private BluetoothGattService mDeviceInfoService = null;
+    private BluetoothGattCharacteristic mHapticCharacteristic = null;
+    private BluetoothGattCharacteristic mOmniWearDeviceTypeCharacteristic = null;
+    private BluetoothGattCharacteristic mFirmwareRevisionCharacteristic = null;
+    private String mFingerprint = null;
+
+    // Connection attempts.
+    private Context mContext = null;
+    private int mConnectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private int mConnectAttempt = 0;
+    private long mConnectStartTime = 0;
+    private long mAttemptStartTime = 0;
+    private volatile long mConnectTimeMs = LinkInfo.UNKNOWN;
+    private volatile int mConnectAttempts = LinkInfo.UNKNOWN;
+
+    // What the link was tuned to.
+    private volatile boolean mHighPriority = false;
+    private volatile int mMtu = DEFAULT_MTU;
+
+    // Set while this connection's own MTU request is outstanding. Only its answer goes on to
+    // identify the device; later MTU changes, e.g. ones the peer starts, just update mMtu.
+    private boolean mAwaitingMtu = false;
+    private volatile int mIntervalEstimateUs = LinkInfo.UNKNOWN;
+    private long mWriteStartTime = 0;
+    private long mWindowMinUs = Long.MAX_VALUE;
+    private int mWindowCount = 0;
+
+    private volatile int mDeviceType = OmniWearHelper.DEVICETYPE_ERROR;
+
+    // Maps directions to motors for this device type. Set once the type is known.
+    private volatile DirectionRenderer mDirectionRenderer = null;
+    private final ConnectionStateMachine mState = new ConnectionStateMachine();
+    private final PatternSequencer mSequencer;
+    private final EnvelopeSequencer mEnvelopes;
+
+    // Motor commands waiting for the device. Only one GATT write can be in flight at a time,
+    // so commands are queued in the pipeline and drained as each write completes. The
+    // transport is attached once the device is connected.
+    private final CommandPipeline mPipeline;
+    private volatile GattTransport mTransport = null;
+    private boolean mPumpPending = false;
+
+    // Latency of the commands sent. Each pending motor keeps the times its newest command was
+    // made and received; the write in flight keeps the times of the command it carries.
+    private final CommandStats mStats = new CommandStats();
+    private final long[] mClientTimes = new long[OmniWearHelper.DEVICETYPE_CAP];
+    private final long[] mReceiveTimes = new long[OmniWearHelper.DEVICETYPE_CAP];
+    private long mInFlightClientTime = 0;
+    private final byte[] mDirectionFrame = new byte[OmniWearHelper.DEVICETYPE_CAP];
+    private long mCoalescedBase = 0;
+    private long mSuppressedBase = 0;
+    private long mDroppedBase = 0;
+
+    OmniWearDevice(int handle, BluetoothDevice device, DeviceProfileCache profileCache, Handler handler, Listener listener) {
+        mHandle = handle;
+        mDevice = device;
+        mProfileCache = profileCache;
+        mHandler = handler;
+        mListener = listener;
+        mPipeline = new CommandPipeline(OmniWearHelper.DEVICETYPE_CAP, mPipelineListener);
+        mPipeline.setRateController(new AimdRateController(), Clock.SYSTEM);
+
+        // Patterns and envelopes play on the handler and feed the command queue.
+        KeyframeTimeline.Listener queueListener = new KeyframeTimeline.Listener() {
+            @Override
+            public void onKeyframe(byte motorId, byte intensity) {
+                queueMotor(motorId, intensity);
+            }
+        };
+        mSequencer = new PatternSequencer(handler, queueListener);
+        mEnvelopes = new EnvelopeSequencer(handler, OmniWearHelper.DEVICETYPE_CAP, queueListener);
+    }
+
+    int getHandle() {
+        return mHandle;
+    }
+
+    String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    int getState() {
+        return mState.get();
+    }
+
+    int getDeviceType() {
+        return mDeviceType;
+    }
+
+    boolean isConnected() {
+        return mState.is(OmniWearHelper.EVENT_STATE_CONNECTED);
+    }
+
+    // The GATT callbacks arrive on a binder thread. Hand each one to the handler so the
+    // connection is only ever touched from one thread. (connectGatt can't take a Handler until
+    // API 26.)
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+
+        @Override
+        public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mGattHandler.onConnectionStateChange(gatt, status, newState);
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mGattHandler.onServicesDiscovered(gatt, status);
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mGattHandler.onMtuChanged(gatt, mtu, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mGattHandler.onCharacteristicWrite(gatt, characteristic, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicRead(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mGattHandler.onCharacteristicRead(gatt, characteristic, status);
+                }
+            });
+        }
+    };
+
+    // Callbacks for interacting with the OmniWear Device, run on the handler.
+    private final BluetoothGattCallback mGattHandler = new BluetoothGattCallback() {
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+
+            // Ignore a connection we have already given up on.
+            if (gatt != mBluetoothGatt) {
+                return;
+            }
+
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                omniwearLog(4, TAG, "Connected in " + (SystemClock.elapsedRealtime() - mAttemptStartTime) +
+                        " ms (attempt " + (mConnectAttempt + 1) + ").");
+
+                // Discovery, the MTU exchange and reading the type get a timeout of their own.
+                mHandler.removeCallbacks(mConnectTimeout);
+                mHandler.postDelayed(mConnectTimeout, mConnectTimeoutMs);
+                omniwearLog(4, TAG, "Attempting to start service discovery:" +
+                        gatt.discoverServices());
+
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+
+                // A failed attempt (e.g. status 133) gets retried; a dropped connection is closed.
+                if (mState.is(OmniWearHelper.EVENT_STATE_CONNECTING)) {
+                    omniwearLog(5, TAG, "Connect attempt failed: " + status);
+                    retryConnect();
+                } else {
+                    close();
+                }
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (gatt != mBluetoothGatt) {
+                return;
+            }
+
+            // Find the service and characteristic for controlling the device.
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mHapticService = gatt.getService(UUID.fromString(HAPTIC_SERVICE_UUID));
+                if (mHapticService == null) {
+
+                    // Weird - no OmniWear service...cancel.
+                    omniwearLog(5, TAG, "OmniWear service not found.");
+                    servicesMismatch();
+                    return;
+                } else {
+                    omniwearLog(4, TAG, "OmniWear service discovered.");
+
+                    // Get the characteristic for controlling the device.
+                    mHapticCharacteristic = mHapticService.getCharacteristic(UUID.fromString(HAPTIC_CHARACTERISTIC_UUID));
+                    if (mHapticCharacteristic == null) {
+
+                        // Weird - no OmniWear chacteristic...cancel.
+                        omniwearLog(5, TAG, "OmniWear characteristic not found.");
+                        servicesMismatch();
+                        return;
+                    } else {
+                        // Success.
+                        omniwearLog(4, TAG, "OmniWear Characteristic found.");
+                    }
+                }
+
+                // Get the Device Info Service.
+                mDeviceInfoService = gatt.getService(UUID.fromString(DEVICE_INFO_SERVICE_UUID));
+                if (mDeviceInfoService == null) {
+
+                    // No Device Info Service.
+                    omniwearLog(5, TAG, "Device Info Service not found.");
+                    servicesMismatch();
+                } else {
+
+                    omniwearLog(4, TAG, "Device Info Service found.");
+
+                    // Get the device type characteristic.
+                    mOmniWearDeviceTypeCharacteristic = mDeviceInfoService.getCharacteristic(UUID.fromString(OMNIWEAR_DEVICE_TYPE_CHARACTERISTIC_UUID));
+                    if (mOmniWearDeviceTypeCharacteristic == null) {
+
+                        // Weird - no device type characteristic...cancel.
+                        omniwearLog(5, TAG, "Device type characteristic not found.");
+                        servicesMismatch();
+                        return;
+                    } else {
+                        // Success.
+                        omniwearLog(4, TAG, "Device type Characteristic found.");
+                    }
+
+                    // Speed up the link before anything else goes over it.
+                    tuneLink(gatt);
+                }
+            } else {
+                omniwearLog(5, TAG, "onServicesDiscovered received: " + status);
+                retryConnect();
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (gatt != mBluetoothGatt) {
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mMtu = mtu;
+            }
+            omniwearLog(4, TAG, "MTU is " + mMtu + " (asked for " + DESIRED_MTU + ", status " + status + ")");
+            if (mAwaitingMtu) {
+                mAwaitingMtu = false;
+                identifyDevice(gatt);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if (gatt != mBluetoothGatt) {
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                omniwearLog(2, TAG, "Write successful.");
+            } else {
+                omniwearLog(5, TAG, "Write failed: " + status);
+            }
+
+            // Send whatever queued up while this write was in flight.
+            GattTransport transport = mTransport;
+            if (transport != null) {
+                transport.onCharacteristicWrite(status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if (gatt != mBluetoothGatt) {
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                omniwearLog(4, TAG, "Read successful");
+            } else {
+                omniwearLog(6, TAG, "Read failed");
+            }
+
+            // Handle the device type characteristic.
+            if (characteristic == mOmniWearDeviceTypeCharacteristic) {
+
+                int deviceType = OmniWearHelper.DEVICETYPE_ERROR;
+                try {
+                    deviceType = Integer.valueOf(characteristic.getStringValue(0));
+                } catch (NumberFormatException e) {
+                    // Handled below.
+                }
+
+                // Error check.
+                if (deviceType != OmniWearHelper.DEVICETYPE_CAP &&
+                        deviceType != OmniWearHelper.DEVICETYPE_NECKBAND &&
+                        deviceType != OmniWearHelper.DEVICETYPE_WRISTBAND) {
+                    omniwearLog(6, TAG, "onServicesDiscovered: invalid device type returned from device");
+                    servicesMismatch();
+                    return;
+                }
+                mDeviceType = deviceType;
+                omniwearLog(4, TAG, "Device Type is " + mDeviceType);
+
+                // Tell the app we're all set.
+                setState(OmniWearHelper.EVENT_STATE_CONNECTED);
+
+                // Read the firmware revision for the profile, or save it without one.
+                mFirmwareRevisionCharacteristic = mDeviceInfoService.getCharacteristic(UUID.fromString(FIRMWARE_REVISION_CHARACTERISTIC_UUID));
+                if (mFirmwareRevisionCharacteristic == null || !gatt.readCharacteristic(mFirmwareRevisionCharacteristic)) {
+                    saveProfile("");
+                }
+
+            } else if (characteristic == mFirmwareRevisionCharacteristic) {
+                String firmwareRevision = status == BluetoothGatt.GATT_SUCCESS ? characteristic.getStringValue(0) : null;
+                saveProfile(firmwareRevision == null ? "" : firmwareRevision);
+            }
+
+            // Writes can't go out while a read is pending - catch up now.
+            synchronized (mPipeline) {
+                pump();
+            }
+        }
+    };
+
+    // Start connecting. Direct attempts give up after timeoutMs. Called on the handler.
+    void connect(Context context, int timeoutMs) {
+        mContext = context;
+        mConnectTimeoutMs = timeoutMs;
+        mConnectAttempt = 0;
+        mConnectStartTime = SystemClock.elapsedRealtime();
+        mConnectTimeMs = LinkInfo.UNKNOWN;
+        mConnectAttempts = LinkInfo.UNKNOWN;
+        setState(OmniWearHelper.EVENT_STATE_CONNECTING);
+        startConnectAttempt();
+    }
+
+    private final Runnable mConnectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            omniwearLog(5, TAG, "Connect attempt timed out.");
+            retryConnect();
+        }
+    };
+
+    private final Runnable mRetryConnect = new Runnable() {
+        @Override
+        public void run() {
+            startConnectAttempt();
+        }
+    };
+
+    private void startConnectAttempt() {
+
+        if (!mState.is(OmniWearHelper.EVENT_STATE_CONNECTING)) {
+            return;
+        }
+
+        // Fall back to a background connection once the direct attempts are used up.
+        boolean autoConnect = mConnectAttempt >= DIRECT_CONNECT_ATTEMPTS;
+        omniwearLog(3, TAG, "Attempting to connect to: " + mDevice + (autoConnect ? " (background)" : ""));
+        mAttemptStartTime = SystemClock.elapsedRealtime();
+        mBluetoothGatt = mDevice.connectGatt(mContext, autoConnect, mGattCallback);
+        if (mBluetoothGatt == null) {
+            omniwearLog(6, TAG, "connectGatt failed");
+            close();
+            return;
+        }
+        if (!autoConnect) {
+            mHandler.postDelayed(mConnectTimeout, mConnectTimeoutMs);
+        }
+    }
+
+    // Give up on the current attempt and schedule the next one.
+    private void retryConnect() {
+
+        if (!mState.is(OmniWearHelper.EVENT_STATE_CONNECTING)) {
+            return;
+        }
+        mHandler.removeCallbacks(mConnectTimeout);
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+        }
+        mAwaitingMtu = false;
+
+        // Back off exponentially between direct attempts. There are few enough of them that
+        // the delay stays short.
+        mConnectAttempt++;
+        long delay = 0;
+        if (mConnectAttempt < DIRECT_CONNECT_ATTEMPTS) {
+            delay = RECONNECT_BACKOFF_MS << (mConnectAttempt - 1);
+            omniwearLog(4, TAG, "Retrying in " + delay + " ms.");
+        } else {
+            omniwearLog(4, TAG, "Falling back to a background connection.");
+        }
+        mHandler.postDelayed(mRetryConnect, delay);
+    }
+
+    // Ask for a fast connection interval and a larger MTU. The MTU exchange is a GATT operation
+    // of its own, so identifying the device waits for onMtuChanged.
+    private void tuneLink(BluetoothGatt gatt) {
+        mHighPriority = gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        omniwearLog(4, TAG, "High connection priority " + (mHighPriority ? "granted." : "refused."));
+        mAwaitingMtu = gatt.requestMtu(DESIRED_MTU);
+        if (!mAwaitingMtu) {
+            omniwearLog(5, TAG, "MTU request failed.");
+            identifyDevice(gatt);
+        }
+    }
+
+    // Find out what kind of device this is and finish connecting.
+    private void identifyDevice(BluetoothGatt gatt) {
+
+        // A known device whose services haven't changed doesn't need its type read.
+        String fingerprint = DeviceProfileCache.fingerprint(gatt.getServices());
+        DeviceProfileCache.Profile profile = mProfileCache.get(getAddress());
+        if (profile != null && profile.fingerprint.equals(fingerprint)) {
+            mDeviceType = profile.deviceType;
+            omniwearLog(4, TAG, "Device Type is " + mDeviceType + " (cached, firmware " +
+                    profile.firmwareRevision + ")");
+            setState(OmniWearHelper.EVENT_STATE_CONNECTED);
+            return;
+        }
+        if (profile != null) {
+            omniwearLog(4, TAG, "Services changed - discarding cached profile.");
+            mProfileCache.invalidate(getAddress());
+        }
+        mFingerprint = fingerprint;
+
+        // Save the device type.
+        gatt.readCharacteristic(mOmniWearDeviceTypeCharacteristic);
+    }
+
+    // Fold the round trip of the acknowledged write that just completed into the interval
+    // estimate. Called with the pipeline locked.
+    private void measureInterval() {
+        long roundTripUs = (SystemClock.elapsedRealtimeNanos() - mWriteStartTime) / 1000;
+        mWindowMinUs = Math.min(mWindowMinUs, roundTripUs);
+        mWindowCount++;
+
+        // Publish a faster interval straight away and a slower one once per window.
+        if (mIntervalEstimateUs == LinkInfo.UNKNOWN || mWindowMinUs < mIntervalEstimateUs || mWindowCount >= INTERVAL_WINDOW) {
+            if (mIntervalEstimateUs == LinkInfo.UNKNOWN) {
+                omniwearLog(4, TAG, "Connection interval is about " + mWindowMinUs / 1000 + " ms.");
+            }
+            mIntervalEstimateUs = (int) Math.min(mWindowMinUs, Integer.MAX_VALUE);
+        }
+        if (mWindowCount >= INTERVAL_WINDOW) {
+            mWindowMinUs = Long.MAX_VALUE;
+            mWindowCount = 0;
+        }
+    }
+
+    LinkInfo getLinkInfo() {
+        return new LinkInfo(mHighPriority, DESIRED_MTU, mMtu, mIntervalEstimateUs, mConnectTimeMs, mConnectAttempts);
+    }
+
+    // Queue a motor command from inside the service, e.g. a pattern.
+    void queueMotor(byte motorId, byte intensity) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        queueMotor(motorId, intensity, now, now);
+    }
+
+    // Queue a motor command, replacing any value for this motor that hasn't gone out yet.
+    // clientTime is when the command was made and receiveTime when it reached the service.
+    void queueMotor(byte motorId, byte intensity, long clientTime, long receiveTime) {
+        queueMotor(motorId, intensity, false, clientTime, receiveTime);
+    }
+
+    // Queue a motor command in the urgent or the ambient lane. Urgent commands go ahead of
+    // everything else, and while one holds a motor on, ambient commands can't change it.
+    void queueMotor(byte motorId, byte intensity, boolean urgent, long clientTime, long receiveTime) {
+        mStats.commandReceived();
+
+        // The pipeline has room for the largest device; this one may have fewer motors, and the
+        // device rejects writes to the others.
+        if (motorId < 0 || motorId >= mDeviceType) {
+            omniwearLog(5, TAG, "Invalid motor " + motorId + " for device type " + mDeviceType);
+            return;
+        }
+        synchronized (mPipeline) {
+            if (!mPipeline.offer(motorId, intensity, urgent)) {
+                omniwearLog(5, TAG, "Invalid motor " + motorId);
+                return;
+            }
+            mClientTimes[motorId] = clientTime;
+            mReceiveTimes[motorId] = receiveTime;
+            schedulePump(urgent);
+        }
+    }
+
+    // Queue a frame of intensities indexed by motor ID. Only motors that changed since the
+    // last request need a packet.
+    void queueFrame(byte[] intensities, int length) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        queueFrame(intensities, length, now, now);
+    }
+
+    void queueFrame(byte[] intensities, int length, long clientTime, long receiveTime) {
+        mStats.commandReceived();
+        synchronized (mPipeline) {
+            int count = mPipeline.getQueue().offerFrame(intensities, Math.min(length, mDeviceType));
+            if (count > 0) {
+                for (int i = 0; i < Math.min(length, mClientTimes.length); i++) {
+                    mClientTimes[i] = clientTime;
+                    mReceiveTimes[i] = receiveTime;
+                }
+            }
+            schedulePump();
+        }
+    }
+
+    // Send the next queued command. Writes only go out on the handler, so a command queued on
+    // any other thread asks the handler to send it. Called with the pipeline locked.
+    private void schedulePump() {
+        schedulePump(false);
+    }
+
+    // An urgent command jumps ahead of whatever else is waiting on the handler.
+    private void schedulePump(boolean urgent) {
+        if (Looper.myLooper() == mHandler.getLooper()) {
+            pump();
+        } else if (urgent) {
+            mHandler.removeCallbacks(mPump);
+            mPumpPending = true;
+            mHandler.postAtFrontOfQueue(mPump);
+        } else if (!mPumpPending) {
+            mPumpPending = true;
+            mHandler.post(mPump);
+        }
+    }
+
+    // Write the next command if the link and the rate limit allow. Called on the handler with
+    // the pipeline locked.
+    private void pump() {
+        paceAfter(mPipeline.pump());
+    }
+
+    // Come back when the rate limit lets the next ambient command go.
+    private void paceAfter(long delayNanos) {
+        if (delayNanos > 0 && !mPumpPending) {
+            mPumpPending = true;
+            mHandler.postDelayed(mPump, (delayNanos + 999999) / 1000000);
+        }
+    }
+
+    private final Runnable mPump = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mPipeline) {
+                mPumpPending = false;
+                pump();
+            }
+        }
+    };
+
+    // Queue the frame that points the device at a direction.
+    void queueDirection(float azimuth, float elevation, byte intensity, long clientTime, long receiveTime) {
+        DirectionRenderer renderer = mDirectionRenderer;
+        if (renderer == null) {
+            omniwearLog(5, TAG, "No motor layout for device type " + mDeviceType);
+            return;
+        }
+        synchronized (mPipeline) {
+            int count = renderer.render(azimuth, elevation, intensity & 0xff, mDirectionFrame);
+            queueFrame(mDirectionFrame, count, clientTime, receiveTime);
+        }
+    }
+
+    // Write every motor's last requested intensity again, even if the device should already
+    // hold it.
+    void forceRefresh() {
+        synchronized (mPipeline) {
+            mPipeline.forceRefresh();
+            schedulePump();
+        }
+    }
+
+    // Time taken by a client's command to reach the service.
+    void recordBinderTransit(long clientTime, long receiveTime) {
+        mStats.binderTransit(clientTime, receiveTime);
+    }
+
+    OmniWearStats getStats() {
+        synchronized (mPipeline) {
+            return mStats.snapshot(mPipeline.getCoalescedCount() - mCoalescedBase,
+                    mPipeline.getSuppressedCount() - mSuppressedBase,
+                    mPipeline.getDroppedCount() - mDroppedBase, mPipeline.getRateLimit());
+        }
+    }
+
+    void resetStats() {
+        synchronized (mPipeline) {
+            mStats.reset();
+            mCoalescedBase = mPipeline.getCoalescedCount();
+            mSuppressedBase = mPipeline.getSuppressedCount();
+            mDroppedBase = mPipeline.getDroppedCount();
+        }
+    }
+
+    void playKeyframes(KeyframePattern pattern, boolean loop) {
+        mSequencer.play(pattern, loop);
+    }
+
+    // Stop the playing pattern and turn off the motors it uses.
+    void stopKeyframes() {
+        KeyframePattern pattern = mSequencer.stop();
+        if (pattern == null) {
+            return;
+        }
+        for (int i = 0; i < pattern.size(); i++) {
+            queueMotor(pattern.getMotorId(i), OmniWearHelper.OFF);
+        }
+    }
+
+    // Stop a pattern if it is the one playing.
+    void stopPattern(KeyframePattern pattern) {
+        if (mSequencer.isPlaying(pattern)) {
+            stopKeyframes();
+        }
+    }
+
+    int getKeyframeProgress() {
+        return mSequencer.getProgress();
+    }
+
+    // Play an envelope on one motor, replacing any already playing there.
+    void playEnvelope(byte motorId, Envelope envelope) {
+        if (!mEnvelopes.play(motorId, envelope)) {
+            omniwearLog(5, TAG, "Invalid motor " + motorId);
+        }
+    }
+
+    // Stop every envelope and turn off the motors they were driving.
+    void stopEnvelopes() {
+        for (byte motorId : mEnvelopes.stop()) {
+            queueMotor(motorId, OmniWearHelper.OFF);
+        }
+    }
+
+    void setEnvelopeTickRate(int ticksPerSecond) {
+        mEnvelopes.setTickRate(ticksPerSecond);
+    }
+
+    void setStreamingMode(boolean enabled) {
+        omniwearLog(4, TAG, "Streaming mode: " + enabled);
+        synchronized (mPipeline) {
+            mPipeline.setStreamingMode(enabled);
+        }
+    }
+
+    // Start writing queued commands to the haptic characteristic.
+    private void attachTransport() {
+        synchronized (mPipeline) {
+            mTransport = new GattTransport(mBluetoothGatt, mHapticCharacteristic);
+            mTransport.setListener(new HapticTransport.Listener() {
+                @Override
+                public void onWriteComplete(boolean success) {
+                    synchronized (mPipeline) {
+                        paceAfter(mPipeline.onWriteComplete(success));
+                    }
+                }
+            });
+            mPipeline.setTransport(mTransport);
+            pump();
+        }
+    }
+
+    // Timing and logging for each write. Called with the pipeline locked.
+    private final CommandPipeline.Listener mPipelineListener = new CommandPipeline.Listener() {
+
+        @Override
+        public void onSubmitted(int command, boolean acknowledged) {
+            mWriteStartTime = SystemClock.elapsedRealtimeNanos();
+            byte motorId = MotorCommand.motorOf(command);
+            if (mListener.isLoggable(2)) {
+                omniwearLog(2, TAG, "Write: " + motorId + " " + MotorCommand.intensityOf(command) +
+                        (acknowledged ? "" : " (no response)"));
+            }
+            mInFlightClientTime = mClientTimes[motorId];
+            mStats.writeSubmitted(mReceiveTimes[motorId], mWriteStartTime);
+        }
+
+        @Override
+        public void onCompleted(int command, boolean acknowledged, boolean success) {
+            if (!success) {
+                mStats.writeFailed();
+                return;
+            }
+            mStats.writeCompleted(mInFlightClientTime, mWriteStartTime, SystemClock.elapsedRealtimeNanos());
+            if (acknowledged) {
+                measureInterval();
+            }
+        }
+    };
+
+    // The device doesn't look like what we expected - forget what we knew about it and give up.
+    private void servicesMismatch() {
+        mProfileCache.invalidate(getAddress());
+        close();
+    }
+
+    // Remember the device so the next connection can skip reading its type.
+    private void saveProfile(String firmwareRevision) {
+        if (mFingerprint == null) {
+            return;
+        }
+        omniwearLog(3, TAG, "Saving profile, firmware " + firmwareRevision);
+        mProfileCache.put(getAddress(), new DeviceProfileCache.Profile(mDeviceType, mDeviceType, firmwareRevision, mFingerprint));
+        mFingerprint = null;
+    }
+
+    // Set the state and tell the service.
+    private void setState(int newState) {
+        if (!mState.moveTo(newState)) {
+            omniwearLog(5, TAG, "Ignoring state change " + mState.get() + " -> " + newState);
+            return;
+        }
+        if (newState == OmniWearHelper.EVENT_STATE_CONNECTED) {
+            mHandler.removeCallbacks(mConnectTimeout);
+            mConnectTimeMs = SystemClock.elapsedRealtime() - mConnectStartTime;
+            mConnectAttempts = mConnectAttempt + 1;
+            omniwearLog(4, TAG, "Ready " + mConnectTimeMs + " ms after connect was requested.");
+            attachTransport();
+
+            // Build the direction table now rather than on the first setDirection.
+            mDirectionRenderer = DirectionRenderer.forDeviceType(mDeviceType);
+        }
+        mListener.onStateChanged(this, newState);
+    }
+
+    // Log with the device's handle, so messages from several devices can be told apart.
+    private void omniwearLog(int priority, String tag, String msg) {
+        if (!mListener.isLoggable(priority)) {
+            return;
+        }
+        mListener.onLog(priority, tag, "[" + mHandle + "] " + msg);
+    }
+
+    // Cleanup. Called on the handler.
+    void close() {
+
+        if (mState.is(OmniWearHelper.EVENT_STATE_NONE)) {
+            return;
+        }
+        mHandler.removeCallbacks(mConnectTimeout);
+        mHandler.removeCallbacks(mRetryConnect);
+        omniwearLog(4, TAG, "stop");
+        mSequencer.stop();
+        mEnvelopes.stop();
+
+        // Anything still queued will never reach the device.
+        synchronized (mPipeline) {
+            mPipeline.reset();
+            mTransport = null;
+            omniwearLog(4, TAG, "Commands coalesced: " + mPipeline.getCoalescedCount() +
+                    ", suppressed: " + mPipeline.getSuppressedCount() +
+                    ", dropped: " + mPipeline.getDroppedCount());
+            if (mBluetoothGatt != null) {
+                mBluetoothGatt.close();
+                mBluetoothGatt = null;
+            }
+            mHapticService = null;
+            mHapticCharacteristic = null;
+        }
+        mFingerprint = null;
+        mHighPriority = false;
+        mMtu = DEFAULT_MTU;
+        mAwaitingMtu = false;
+        mIntervalEstimateUs = LinkInfo.UNKNOWN;
+        mWindowMinUs = Long.MAX_VALUE;
+        mWindowCount = 0;
+        mDeviceType = OmniWearHelper.DEVICETYPE_ERROR;
+        mDirectionRenderer = null;
+        setState(OmniWearHelper.EVENT_STATE_NONE);
+    }
+}
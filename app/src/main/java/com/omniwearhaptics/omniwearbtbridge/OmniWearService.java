@@ -16,30 +16,44 @@ package com.omniwearhaptics.omniwearbtbridge;
 
 import com.omniwearhaptics.api.IOmniWear;
 import com.omniwearhaptics.api.IOmniWearCallback;
+import com.omniwearhaptics.api.IOmniWearUrgentChannel;
+import com.omniwearhaptics.api.LinkInfo;
 import com.omniwearhaptics.api.OmniWearHelper;
+import com.omniwearhaptics.api.OmniWearStats;
+import com.omniwearhaptics.core.Envelope;
+import com.omniwearhaptics.core.KeyframePattern;
+import com.omniwearhaptics.core.PatternCache;
+import com.omniwearhaptics.core.PatternFile;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.ParcelUuid;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 import android.widget.Toast;
 
-import java.util.UUID;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Android Service that other apps can use to interact with OmniWear devices.
@@ -50,30 +64,104 @@ public class OmniWearService extends Service {
 
     private static final String TAG = "OmniWearService";
 
-    // TODO add connecting timeout
-
     // Constants from the firmware.
     private static final String BT_NAME = "OmniWear";
-    private static final String HAPTIC_SERVICE_UUID = "99700001-ad20-11e6-8000-00805F9B34FB";
-    private static final String HAPTIC_CHARACTERISTIC_UUID = "99700002-ad20-11e6-8000-00805F9B34FB";
-    private static final String DEVICE_INFO_SERVICE_UUID = "0000180a-0000-1000-8000-00805F9B34FB";
-    private static final String OMNIWEAR_DEVICE_TYPE_CHARACTERISTIC_UUID = "00002a24-0000-1000-8000-00805F9B34FB";
 
     // Duration of scan.
     private static final long SCAN_PERIOD = 10000;
 
+    // How long to keep listening after the first match, for a stronger device.
+    private static final long SETTLE_PERIOD = 300;
+
+    // How long onDestroy waits for the BLE thread to close the devices.
+    private static final long SHUTDOWN_TIMEOUT = 1000;
+
+    // Pattern files: the largest accepted, and how many keyframes of decoded patterns to keep.
+    private static final long MAX_PATTERN_FILE_SIZE = 1 << 20;
+    private static final int MAX_CACHED_KEYFRAMES = 1 << 16;
+
+    // Log lines at this level and above are always built, even if no client wants them.
+    private static final int LOGCAT_LEVEL = Log.INFO;
+
     // State and BlueTooth fields.
     private BluetoothAdapter mBluetoothAdapter = null;
-    private BluetoothGatt mBluetoothGatt = null;
-    private BluetoothGattService mHapticService = null;
-    private BluetoothGattService mDeviceInfoService = null;
-    private BluetoothGattCharacteristic mHapticCharacteristic = null;
-    private BluetoothGattCharacteristic mOmniWearDeviceTypeCharacteristic = null;
-    private Handler mHandler;
-    private IOmniWearCallback mCallback;
-    private static String mConnectedDeviceMAC = "";
-    private static int mDeviceType = OmniWearHelper.DEVICETYPE_ERROR;
-    private static int mState = OmniWearHelper.EVENT_STATE_NONE;
+    private DeviceProfileCache mProfileCache;
+
+    // All BLE operations and timers run on this thread. Binder threads only queue commands
+    // and post work to it, so GATT operations happen in one order and UI work in the process
+    // can't delay them.
+    private HandlerThread mBleThread = null;
+    private Handler mHandler = null;
+    private final CallbackDispatcher mDispatcher = new CallbackDispatcher();
+    private final PatternCache mPatternCache = new PatternCache(MAX_CACHED_KEYFRAMES);
+
+    // Patterns registered by clients. One that goes away is stopped wherever it is playing.
+    private final PatternRegistry mPatternRegistry = new PatternRegistry(new PatternRegistry.Listener() {
+        @Override
+        public void onPatternRemoved(final KeyframePattern pattern) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (OmniWearDevice device : getDevices()) {
+                        device.stopPattern(pattern);
+                    }
+                }
+            });
+        }
+    });
+    private volatile boolean mSearching = false;
+    private volatile int mConnectTimeoutMs = OmniWearDevice.DEFAULT_CONNECT_TIMEOUT_MS;
+
+    // Devices by handle. Handle OmniWearHelper.DEVICE_PRIMARY addresses the primary device -
+    // the one last connected through connectToKnownDevice or a search.
+    private final SparseArray<OmniWearDevice> mDevices = new SparseArray<>();
+    private int mNextHandle = 1;
+    private volatile int mPrimaryHandle = OmniWearHelper.DEVICE_PRIMARY;
+
+    // Frames streamed by clients through shared memory, each through a ring of its own.
+    private final FrameRingRegistry mFrameRings = new FrameRingRegistry(new FrameRingRegistry.Listener() {
+        @Override
+        public void onFrame(int deviceHandle, byte[] frame, int length) {
+            OmniWearDevice device = getDevice(deviceHandle);
+            if (device != null && device.isConnected()) {
+                device.queueFrame(frame, length);
+            }
+        }
+    });
+
+    // Events from the devices.
+    private final OmniWearDevice.Listener mDeviceListener = new OmniWearDevice.Listener() {
+
+        @Override
+        public void onStateChanged(OmniWearDevice device, int newState) {
+
+            // A device that has gone back to NONE is closed - forget it.
+            boolean primary = device.getHandle() == mPrimaryHandle;
+            if (newState == OmniWearHelper.EVENT_STATE_NONE) {
+                synchronized (mDevices) {
+                    mDevices.remove(device.getHandle());
+                }
+                if (primary) {
+                    mPrimaryHandle = OmniWearHelper.DEVICE_PRIMARY;
+                }
+            }
+
+            fireDeviceEvent(device.getHandle(), newState);
+            if (primary) {
+                setState(newState);
+            }
+        }
+
+        @Override
+        public boolean isLoggable(int priority) {
+            return OmniWearService.this.isLoggable(priority);
+        }
+
+        @Override
+        public void onLog(int priority, String tag, String msg) {
+            omniwearLog(priority, tag, msg);
+        }
+    };
 
     @Override
 	public void onCreate(){
@@ -108,14 +196,37 @@ public class OmniWearService extends Service {
             return;
         }
 
-        // Set up the handler.
-        mHandler = new Handler();
+        // Set up the BLE thread.
+        mBleThread = new HandlerThread("OmniWearBle", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mBleThread.start();
+        mHandler = new Handler(mBleThread.getLooper());
+
+        // What we know about devices from earlier connections.
+        mProfileCache = new DeviceProfileCache(this);
     }
 
     @Override
     public void onDestroy(){
         super.onDestroy();
-        stop();
+        mFrameRings.closeAll();
+
+        // Close the devices on the BLE thread, and let their last events out before the
+        // dispatcher goes.
+        if (mBleThread != null) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    disconnectAll();
+                }
+            });
+            mBleThread.quitSafely();
+            try {
+                mBleThread.join(SHUTDOWN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mDispatcher.close();
     }
 
 	@Override
@@ -123,19 +234,67 @@ public class OmniWearService extends Service {
         return mBinder;
 	}
 
+    // Urgent motor commands. Oneway calls to one binder object are delivered one at a time,
+    // so urgent ones come in on this object rather than queueing behind ambient ones.
+    private final IOmniWearUrgentChannel.Stub mUrgentChannel = new IOmniWearUrgentChannel.Stub() {
+
+        @Override
+        public void setMotor(int deviceHandle, byte motorId, byte intensity, long clientTimeNanos) throws RemoteException {
+
+            long receiveTime = SystemClock.elapsedRealtimeNanos();
+            OmniWearDevice device = getConnectedDevice(deviceHandle, "urgent setMotor");
+            if (device != null) {
+                device.recordBinderTransit(clientTimeNanos, receiveTime);
+                device.queueMotor(motorId, intensity, true, clientTimeNanos, receiveTime);
+            }
+        }
+    };
+
     // Implementation of OmniWear API.
 	private IOmniWear.Stub mBinder = new IOmniWear.Stub() {
 
-        // Register a callback to communicate with the client app.
+        // Register a callback the way the original interface did. The client gets log lines at
+        // INFO and above and the primary device's events.
         @Override
         public void registerCallback(IOmniWearCallback callback) throws RemoteException {
-            mCallback = callback;
+            if (callback != null) {
+                mDispatcher.registerLegacy(callback, Binder.getCallingPid());
+            }
         }
 
-        // Unregister a callback to communicate with the client app.
+        // Unregister the callbacks the calling process registered through registerCallback.
         @Override
         public void unregisterCallback() throws RemoteException {
-            mCallback = null;
+            if (mDispatcher.unregisterLegacy(Binder.getCallingPid()) == 0) {
+                omniwearLog(5, TAG, "unregisterCallback: no callback registered");
+            }
+        }
+
+        // Register a callback to communicate with a client app. Any number of clients can
+        // register. Log lines below minLogLevel are not sent to this client.
+        @Override
+        public void registerClient(IOmniWearCallback callback, int minLogLevel) throws RemoteException {
+            if (callback != null) {
+                mDispatcher.register(callback, minLogLevel);
+            }
+        }
+
+        // Change the log level of a registered client.
+        @Override
+        public void setLogLevel(IOmniWearCallback callback, int minLogLevel) throws RemoteException {
+            if (callback != null) {
+                mDispatcher.setLogLevel(callback, minLogLevel);
+            }
+        }
+
+        // Unregister a callback to communicate with a client app.
+        @Override
+        public void unregisterClient(IOmniWearCallback callback) throws RemoteException {
+            if (callback != null) {
+                mDispatcher.unregister(callback);
+                mPatternRegistry.removeClient(callback.asBinder());
+                mFrameRings.close(callback.asBinder());
+            }
         }
 
         // Search for a new OmniWear device.
@@ -143,8 +302,8 @@ public class OmniWearService extends Service {
         public void searchForOmniWearDevice() throws RemoteException {
 
             // Error check.
-            if (mState != OmniWearHelper.EVENT_STATE_NONE) {
-                omniwearLog(6, TAG, "searchForOmniWearDevice: state is not EVENT_STATE_NONE");
+            if (mSearching) {
+                omniwearLog(6, TAG, "searchForOmniWearDevice: already searching");
                 return;
             }
             if (!mBluetoothAdapter.isEnabled()) {
@@ -152,310 +311,741 @@ public class OmniWearService extends Service {
                 return;
             }
 
-            // Set up the BT LE scanner.
-            final BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
-
-            // Callback function for the BT scanner.
-            final ScanCallback btCallback = new ScanCallback() {
-
+            // Start searching!
+            mSearching = true;
+            setState(OmniWearHelper.EVENT_STATE_SEARCHING);
+            mHandler.post(new Runnable() {
                 @Override
-                public void onScanResult(int callbackType, ScanResult result) {
+                public void run() {
+                    new DeviceScan(mBluetoothAdapter.getBluetoothLeScanner()).start();
+                }
+            });
+        }
 
-                    super.onScanResult(callbackType, result);
+		@Override
+		public void connectToKnownDevice(String deviceMacAddress) throws RemoteException {
 
-                    // Examine this device...
-                    BluetoothDevice device = result.getDevice();
-                    String deviceName = device.getName();
+            // The device becomes the primary device.
+            openDevice(deviceMacAddress, true);
+        }
 
-                    // Throw out empty or null names.
-                    if (deviceName == null || deviceName.isEmpty() ) { return; }
+        @Override
+        public int connectDevice(String deviceMacAddress) throws RemoteException {
+            return openDevice(deviceMacAddress, false);
+        }
 
-                    // Log for debugging.
-                    omniwearLog(3, TAG, "Found device: " + device.getName());
+        // How long each direct connect attempt may take before it is retried.
+        @Override
+        public void setConnectTimeout(int timeoutMs) throws RemoteException {
+            if (timeoutMs <= 0) {
+                omniwearLog(5, TAG, "setConnectTimeout: invalid timeout " + timeoutMs);
+                return;
+            }
+            mConnectTimeoutMs = timeoutMs;
+        }
 
-                    // Check if it's an OmniWear device.
-                    if (device.getName().equals(BT_NAME)) {
+        @Override
+        public int[] getDeviceHandles() throws RemoteException {
+            synchronized (mDevices) {
+                int[] handles = new int[mDevices.size()];
+                for (int i = 0; i < handles.length; i++) {
+                    handles[i] = mDevices.keyAt(i);
+                }
+                return handles;
+            }
+        }
 
-                        // Stop scanning.
-                        scanner.stopScan(this);
+		@Override
+		public int getConnectedDeviceType() throws RemoteException {
+            return getDeviceType(OmniWearHelper.DEVICE_PRIMARY);
+        }
 
-                        // Try to connect.
-                        try {
-                            mCallback.onOmniWearEvent(OmniWearHelper.EVENT_DEVICE_FOUND);
-                            connectToKnownDevice(device.getAddress());
-                        } catch (RemoteException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
+        @Override
+        public String getConnectedDeviceMAC() throws RemoteException {
+            return getDeviceMAC(OmniWearHelper.DEVICE_PRIMARY);
+        }
 
-                @Override
-                public void onScanFailed(int errorCode) {
-                    super.onScanFailed(errorCode);
-                    omniwearLog(5, TAG, "onScanFailed: " + errorCode);
-                    setState(OmniWearHelper.EVENT_STATE_NONE);
-                }
-            };
+        @Override
+        public int getDeviceType(int deviceHandle) throws RemoteException {
 
-            // Start searching!
-            scanner.startScan(btCallback);
-            setState(OmniWearHelper.EVENT_STATE_SEARCHING);
+            // Error check.
+            OmniWearDevice device = getDevice(deviceHandle);
+            if (device == null || !device.isConnected()) {
+                omniwearLog(5, TAG, "getDeviceType(): no connected device");
+                return OmniWearHelper.DEVICETYPE_ERROR;
+            }
+            return device.getDeviceType();
+        }
 
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
+        @Override
+        public String getDeviceMAC(int deviceHandle) throws RemoteException {
+            OmniWearDevice device = getDevice(deviceHandle);
+            if (device == null || !device.isConnected()) {
+                omniwearLog(5, TAG, "getDeviceMAC: no current connected device");
+                return "";
+            }
+            return device.getAddress();
+        }
 
-                @Override
-                public void run() {
+        @Override
+        public int getDeviceState(int deviceHandle) throws RemoteException {
+            OmniWearDevice device = getDevice(deviceHandle);
+            return device == null ? OmniWearHelper.EVENT_STATE_NONE : device.getState();
+        }
 
-                    // Stop scan.
-                    scanner.stopScan(btCallback);
-
-                    // Didn't find our device.
-                    if (mState == OmniWearHelper.EVENT_STATE_SEARCHING) {
-                        omniwearLog(4, TAG, "Device not found");
-                        setState(OmniWearHelper.EVENT_STATE_NONE);
-                        try {
-                            mCallback.onOmniWearEvent(OmniWearHelper.EVENT_DEVICE_NOT_FOUND);
-                        } catch (RemoteException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-            }, SCAN_PERIOD);
+        @Override
+        public LinkInfo getLinkInfo(int deviceHandle) throws RemoteException {
+            OmniWearDevice device = getDevice(deviceHandle);
+            return device == null ? null : device.getLinkInfo();
         }
 
+        // The original, synchronous setMotor, for the primary device. Its caller's time is not
+        // known, so it has no binder stage.
 		@Override
-		public void connectToKnownDevice(String deviceMacAddress) throws RemoteException {
+		public void setMotor(byte motorId, byte intensity) throws RemoteException {
+            OmniWearDevice device = getConnectedDevice(OmniWearHelper.DEVICE_PRIMARY, "setMotor");
+            if (device != null) {
+                device.queueMotor(motorId, intensity);
+            }
+        }
+
+		@Override
+		public void setDeviceMotor(int deviceHandle, byte motorId, byte intensity, long clientTimeNanos) throws RemoteException {
+
+            long receiveTime = SystemClock.elapsedRealtimeNanos();
+            OmniWearDevice device = getConnectedDevice(deviceHandle, "setMotor");
+            if (device != null) {
+                device.recordBinderTransit(clientTimeNanos, receiveTime);
+                device.queueMotor(motorId, intensity, clientTimeNanos, receiveTime);
+            }
+        }
+
+        @Override
+        public void setMotors(int deviceHandle, byte[] intensities, long clientTimeNanos) throws RemoteException {
+
+            long receiveTime = SystemClock.elapsedRealtimeNanos();
 
             // Error check.
-            if (deviceMacAddress == null) {
-                omniwearLog(6, TAG, "deviceMacAddress is null in connectToDevice");
+            if (intensities == null) {
+                omniwearLog(5, TAG, "setMotors: intensities is null.");
                 return;
             }
-            if (mState == OmniWearHelper.EVENT_STATE_CONNECTED || mState == OmniWearHelper.EVENT_STATE_CONNECTING) {
-                omniwearLog(6, TAG, "connectToKnownDevice: state is connected or connecting.");
-                return;
+
+            OmniWearDevice device = getConnectedDevice(deviceHandle, "setMotors");
+            if (device != null) {
+                device.recordBinderTransit(clientTimeNanos, receiveTime);
+                device.queueFrame(intensities, intensities.length, clientTimeNanos, receiveTime);
             }
+        }
 
-            // Create the device using the MAC.
-            BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(deviceMacAddress);
-            omniwearLog(3, TAG, "Attempting to connect to: " + device);
+        @Override
+        public void setDirection(int deviceHandle, float azimuth, float elevation, byte intensity, long clientTimeNanos) throws RemoteException {
 
-            // Callbacks for interacting with the OmniWear Device.
-            BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+            long receiveTime = SystemClock.elapsedRealtimeNanos();
+            OmniWearDevice device = getConnectedDevice(deviceHandle, "setDirection");
+            if (device != null) {
+                device.recordBinderTransit(clientTimeNanos, receiveTime);
+                device.queueDirection(azimuth, elevation, intensity, clientTimeNanos, receiveTime);
+            }
+        }
 
-                @Override
-                public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        @Override
+        public OmniWearStats getStats(int deviceHandle) throws RemoteException {
+            OmniWearDevice device = getDevice(deviceHandle);
+            return device == null ? null : device.getStats();
+        }
 
-                    if (newState == BluetoothProfile.STATE_CONNECTED) {
-                        omniwearLog(4, TAG, "Connected.");
-                        omniwearLog(4, TAG, "Attempting to start service discovery:" +
-                                mBluetoothGatt.discoverServices());
+        @Override
+        public void resetStats(int deviceHandle) throws RemoteException {
+            OmniWearDevice device = getDevice(deviceHandle);
+            if (device != null) {
+                device.resetStats();
+            }
+        }
 
-                    } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                        stop();
-                    }
-                }
+        // Each client streams through a ring of its own, closed when it closes it or dies.
+        @Override
+        public ParcelFileDescriptor openFrameRing(IOmniWearCallback owner, int deviceHandle) throws RemoteException {
 
-                @Override
-                public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-
-                    // Find the service and characteristic for controlling the device.
-                    if (status == BluetoothGatt.GATT_SUCCESS) {
-                        mHapticService = gatt.getService(UUID.fromString(HAPTIC_SERVICE_UUID));
-                        if (mHapticService == null) {
-
-                            // Weird - no OmniWear service...cancel.
-                            omniwearLog(5, TAG, "OmniWear service not found.");
-                            stop();
-                            return;
-                        } else {
-                            omniwearLog(4, TAG, "OmniWear service discovered.");
-
-                            // Get the characteristic for controlling the device.
-                            mHapticCharacteristic = mHapticService.getCharacteristic(UUID.fromString(HAPTIC_CHARACTERISTIC_UUID));
-                            if (mHapticCharacteristic == null) {
-
-                                // Weird - no OmniWear chacteristic...cancel.
-                                omniwearLog(5, TAG, "OmniWear characteristic not found.");
-                                stop();
-                                return;
-                            } else {
-                                // Success.
-                                omniwearLog(4, TAG, "OmniWear Characteristic found.");
-                            }
-                        }
-
-                        // Get the Device Info Service.
-                        mDeviceInfoService = gatt.getService(UUID.fromString(DEVICE_INFO_SERVICE_UUID));
-                        if (mDeviceInfoService == null) {
-
-                            // No Device Info Service.
-                            omniwearLog(5, TAG, "Device Info Service not found.");
-                            stop();
-                        } else {
-
-                            omniwearLog(4, TAG, "Device Info Service found.");
-
-                            // Get the device type characteristic.
-                            mOmniWearDeviceTypeCharacteristic = mDeviceInfoService.getCharacteristic(UUID.fromString(OMNIWEAR_DEVICE_TYPE_CHARACTERISTIC_UUID));
-                            if (mOmniWearDeviceTypeCharacteristic == null) {
-
-                                // Weird - no device type characteristic...cancel.
-                                omniwearLog(5, TAG, "Device type characteristic not found.");
-                                stop();
-                                return;
-                            } else {
-                                // Success.
-                                omniwearLog(4, TAG, "Device type Characteristic found.");
-                            }
-
-                            // Save the MAC.
-                            mConnectedDeviceMAC = gatt.getDevice().getAddress();
-
-                            // Save the device type.
-                            mBluetoothGatt.readCharacteristic(mOmniWearDeviceTypeCharacteristic);
-                        }
-                    } else {
-                        omniwearLog(5, TAG, "onServicesDiscovered received: " + status);
-                    }
+            // Error check.
+            if (owner == null) {
+                omniwearLog(5, TAG, "openFrameRing: owner is null");
+                return null;
+            }
+
+            try {
+                ParcelFileDescriptor ring = mFrameRings.open(owner.asBinder(), deviceHandle, getCacheDir());
+                if (ring == null) {
+                    omniwearLog(5, TAG, "openFrameRing: owner is dead");
                 }
+                return ring;
+            } catch (IOException e) {
+                omniwearLog(6, TAG, "openFrameRing: " + e.getMessage());
+                return null;
+            }
+        }
 
-                @Override
-                public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-                    if (status == BluetoothGatt.GATT_SUCCESS) {
-                        omniwearLog(4, TAG, "Write successful.");
+        @Override
+        public void closeFrameRing(IOmniWearCallback owner) throws RemoteException {
+            if (owner == null || !mFrameRings.close(owner.asBinder())) {
+                omniwearLog(5, TAG, "closeFrameRing: no frame ring for this client");
+            }
+        }
+
+        @Override
+        public void wakeFrameRing(IOmniWearCallback owner) throws RemoteException {
+            if (owner == null || !mFrameRings.wake(owner.asBinder())) {
+                omniwearLog(5, TAG, "wakeFrameRing: no frame ring for this client");
+            }
+        }
+
+        @Override
+        public void playKeyframes(int deviceHandle, byte[] motorIds, byte[] intensities, int[] offsetsMs, final boolean loop) throws RemoteException {
+
+            // Error check.
+            String error = KeyframePattern.validate(motorIds, intensities, offsetsMs);
+            if (error != null) {
+                omniwearLog(5, TAG, "playKeyframes: " + error);
+                return;
+            }
+
+            final OmniWearDevice device = getConnectedDevice(deviceHandle, "playKeyframes");
+            if (device != null) {
+                final KeyframePattern pattern = new KeyframePattern(motorIds, intensities, offsetsMs);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        device.playKeyframes(pattern, loop);
                     }
-                }
+                });
+            }
+        }
 
-                @Override
-                public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-                    if (status == BluetoothGatt.GATT_SUCCESS) {
-                        omniwearLog(4, TAG, "Read successful");
-                    } else {
-                        omniwearLog(6, TAG, "Read failed");
+        @Override
+        public void stopKeyframes(int deviceHandle) throws RemoteException {
+            final OmniWearDevice device = getDevice(deviceHandle);
+            if (device != null) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        device.stopKeyframes();
                     }
+                });
+            }
+        }
 
-                    // Handle the device type characteristic.
-                    if (characteristic == mOmniWearDeviceTypeCharacteristic) {
+        @Override
+        public int registerPattern(IOmniWearCallback owner, byte[] motorIds, byte[] intensities, int[] offsetsMs) throws RemoteException {
 
-                        int deviceType = Integer.valueOf(characteristic.getStringValue(0));
+            // Error check.
+            String error = KeyframePattern.validate(motorIds, intensities, offsetsMs);
+            if (error != null) {
+                omniwearLog(5, TAG, "registerPattern: " + error);
+                return PatternRegistry.NO_PATTERN;
+            }
+            return registerPattern(owner, new KeyframePattern(motorIds, intensities, offsetsMs), "registerPattern");
+        }
 
-                        // Error check.
-                        if (deviceType != OmniWearHelper.DEVICETYPE_CAP &&
-                                deviceType != OmniWearHelper.DEVICETYPE_NECKBAND &&
-                                deviceType != OmniWearHelper.DEVICETYPE_WRISTBAND) {
-                            omniwearLog(6, TAG, "onServicesDiscovered: invalid device type returned from device");
-                            stop();
-                            return;
-                        }
-                        mDeviceType = deviceType;
-                        omniwearLog(4, TAG, "Device Type is " + mDeviceType);
+        // Register a pattern loaded with loadPatternFile. It stays registered even if the
+        // cache later evicts it.
+        @Override
+        public int registerCachedPattern(IOmniWearCallback owner, String name) throws RemoteException {
+            KeyframePattern pattern = name == null ? null : mPatternCache.get(name);
+            if (pattern == null) {
+                omniwearLog(5, TAG, "registerCachedPattern: " + name + " is not loaded");
+                return PatternRegistry.NO_PATTERN;
+            }
+            return registerPattern(owner, pattern, "registerCachedPattern");
+        }
+
+        private int registerPattern(IOmniWearCallback owner, KeyframePattern pattern, String caller) {
+            if (owner == null) {
+                omniwearLog(5, TAG, caller + ": owner is null");
+                return PatternRegistry.NO_PATTERN;
+            }
+            int handle = mPatternRegistry.register(owner.asBinder(), pattern);
+            if (handle == PatternRegistry.NO_PATTERN) {
+                omniwearLog(5, TAG, caller + ": owner is dead or has " +
+                        PatternRegistry.MAX_PATTERNS_PER_CLIENT + " patterns");
+            }
+            return handle;
+        }
+
+        @Override
+        public void unregisterPattern(IOmniWearCallback owner, int patternHandle) throws RemoteException {
+            if (owner == null || !mPatternRegistry.unregister(owner.asBinder(), patternHandle)) {
+                omniwearLog(5, TAG, "unregisterPattern: no pattern " + patternHandle + " for this client");
+            }
+        }
+
+        @Override
+        public void playPattern(IOmniWearCallback owner, int deviceHandle, int patternHandle, final boolean loop) throws RemoteException {
 
-                        // Tell the app we're all set.
-                        setState(OmniWearHelper.EVENT_STATE_CONNECTED);
+            // Error check.
+            final KeyframePattern pattern = owner == null ? null : mPatternRegistry.get(owner.asBinder(), patternHandle);
+            if (pattern == null) {
+                omniwearLog(5, TAG, "playPattern: no pattern " + patternHandle + " for this client");
+                return;
+            }
+
+            final OmniWearDevice device = getConnectedDevice(deviceHandle, "playPattern");
+            if (device != null) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        device.playKeyframes(pattern, loop);
                     }
-                }
-            };
+                });
+            }
+        }
 
-            // Connect!
-            mBluetoothGatt = device.connectGatt(OmniWearService.this, true, mGattCallback);
-            setState(OmniWearHelper.EVENT_STATE_CONNECTING);
+        // Stop a registered pattern if it is the one playing on the device.
+        @Override
+        public void stopPattern(IOmniWearCallback owner, int deviceHandle, int patternHandle) throws RemoteException {
+            final KeyframePattern pattern = owner == null ? null : mPatternRegistry.get(owner.asBinder(), patternHandle);
+            if (pattern == null) {
+                omniwearLog(5, TAG, "stopPattern: no pattern " + patternHandle + " for this client");
+                return;
+            }
+            final OmniWearDevice device = getDevice(deviceHandle);
+            if (device != null) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        device.stopPattern(pattern);
+                    }
+                });
+            }
         }
 
-		@Override
-		public int getConnectedDeviceType() throws RemoteException {
+        // Decode a pattern file and cache it under name, replacing any pattern with that name.
+        @Override
+        public boolean loadPatternFile(String name, ParcelFileDescriptor patternFile) throws RemoteException {
 
             // Error check.
-            if (mState != OmniWearHelper.EVENT_STATE_CONNECTED) {
-                omniwearLog(5, TAG, "getDeviceType(): no connected device");
-                return OmniWearHelper.DEVICETYPE_ERROR;
+            if (name == null || patternFile == null) {
+                omniwearLog(5, TAG, "loadPatternFile: name or file is null");
+                return false;
+            }
+
+            long start = SystemClock.elapsedRealtimeNanos();
+            KeyframePattern pattern;
+            try {
+                pattern = mapPatternFile(patternFile);
+            } catch (IOException e) {
+                omniwearLog(5, TAG, "loadPatternFile: " + name + ": " + e.getMessage());
+                return false;
+            }
+            if (!mPatternCache.put(name, pattern)) {
+                omniwearLog(5, TAG, "loadPatternFile: " + name + " is too big to cache");
+                return false;
+            }
+            if (isLoggable(3)) {
+                omniwearLog(3, TAG, "Loaded pattern " + name + ": " + pattern.size() + " keyframes in " +
+                        (SystemClock.elapsedRealtimeNanos() - start) / 1000 + " us");
             }
-            return mDeviceType;
+            return true;
         }
 
         @Override
-        public String getConnectedDeviceMAC() throws RemoteException {
-            if (mState != OmniWearHelper.EVENT_STATE_CONNECTED) {
-                omniwearLog(5, TAG, "getConnectedDeviceMAC: no current connected device");
-                return "";
+        public boolean isPatternCached(String name) throws RemoteException {
+            return name != null && mPatternCache.contains(name);
+        }
+
+        @Override
+        public void playCachedPattern(int deviceHandle, String name, final boolean loop) throws RemoteException {
+
+            // Error check.
+            final KeyframePattern pattern = name == null ? null : mPatternCache.get(name);
+            if (pattern == null) {
+                omniwearLog(5, TAG, "playCachedPattern: " + name + " is not loaded");
+                return;
+            }
+
+            final OmniWearDevice device = getConnectedDevice(deviceHandle, "playCachedPattern");
+            if (device != null) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        device.playKeyframes(pattern, loop);
+                    }
+                });
             }
-            return mConnectedDeviceMAC;
         }
 
-		@Override
-		public void setMotor(byte motorId, byte intensity) throws RemoteException {
+        @Override
+        public int getKeyframeProgress(int deviceHandle) throws RemoteException {
+            OmniWearDevice device = getDevice(deviceHandle);
+            return device == null ? -1 : device.getKeyframeProgress();
+        }
 
-			if (mDeviceType == OmniWearHelper.DEVICETYPE_ERROR) {
-                omniwearLog(5, TAG, "setMotor: DeviceType is unkown.");
+        @Override
+        public void rampMotor(int deviceHandle, byte motorId, byte fromIntensity, byte toIntensity, int durationMs) throws RemoteException {
+
+            // Error check.
+            String error = Envelope.validate(durationMs);
+            if (error != null) {
+                omniwearLog(5, TAG, "rampMotor: " + error);
                 return;
-			}
+            }
+            playEnvelope(deviceHandle, motorId, Envelope.ramp(fromIntensity & 0xff, toIntensity & 0xff, durationMs), "rampMotor");
+        }
+
+        @Override
+        public void playEnvelope(int deviceHandle, byte motorId, byte peak, byte sustain,
+                                 int attackMs, int decayMs, int sustainMs, int releaseMs) throws RemoteException {
 
-            // Check if we're connected.
-            if (mState != OmniWearHelper.EVENT_STATE_CONNECTED || mBluetoothGatt == null) {
-                omniwearLog(5, TAG, "setMotor: OmniWear device not connected.");
+            // Error check.
+            String error = Envelope.validate(attackMs, decayMs, sustainMs, releaseMs);
+            if (error != null) {
+                omniwearLog(5, TAG, "playEnvelope: " + error);
                 return;
             }
+            playEnvelope(deviceHandle, motorId, Envelope.adsr(peak & 0xff, sustain & 0xff,
+                    attackMs, decayMs, sustainMs, releaseMs), "playEnvelope");
+        }
 
-            // Set up the value.
-            byte[] value = new byte[2];
-            value[0] = motorId;
-            value[1] = intensity;
-            mHapticCharacteristic.setValue(value);
+        // Start an envelope on the BLE thread.
+        private void playEnvelope(int deviceHandle, final byte motorId, final Envelope envelope, String caller) {
+            final OmniWearDevice device = getConnectedDevice(deviceHandle, caller);
+            if (device != null) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        device.playEnvelope(motorId, envelope);
+                    }
+                });
+            }
+        }
 
-            // Write the command to the device.
-            omniwearLog(4, TAG, "Write: " + value[0] + " " + value[1]);
-            mBluetoothGatt.writeCharacteristic(mHapticCharacteristic);
+        @Override
+        public void stopEnvelopes(int deviceHandle) throws RemoteException {
+            final OmniWearDevice device = getDevice(deviceHandle);
+            if (device != null) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        device.stopEnvelopes();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void setEnvelopeTickRate(int deviceHandle, int ticksPerSecond) throws RemoteException {
+            if (ticksPerSecond <= 0) {
+                omniwearLog(5, TAG, "setEnvelopeTickRate: invalid rate " + ticksPerSecond);
+                return;
+            }
+            OmniWearDevice device = getDevice(deviceHandle);
+            if (device != null) {
+                device.setEnvelopeTickRate(ticksPerSecond);
+            }
+        }
+
+        @Override
+        public void forceRefresh(int deviceHandle) throws RemoteException {
+            OmniWearDevice device = getConnectedDevice(deviceHandle, "forceRefresh");
+            if (device != null) {
+                device.forceRefresh();
+            }
+        }
+
+        @Override
+        public void setStreamingMode(int deviceHandle, boolean enabled) throws RemoteException {
+            OmniWearDevice device = getDevice(deviceHandle);
+            if (device != null) {
+                device.setStreamingMode(enabled);
+            }
         }
 
 		@Override
 		public void disconnect() throws RemoteException {
-			stop();
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    disconnectAll();
+                }
+            });
 		}
 
+        @Override
+        public void disconnectDevice(int deviceHandle) throws RemoteException {
+            final OmniWearDevice device = getDevice(deviceHandle);
+            if (device != null) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        device.close();
+                    }
+                });
+            }
+        }
+
         @Override
         public int getState() throws RemoteException {
-            return mState;
+            if (mSearching) {
+                return OmniWearHelper.EVENT_STATE_SEARCHING;
+            }
+            return getDeviceState(OmniWearHelper.DEVICE_PRIMARY);
+        }
+
+        @Override
+        public IOmniWearUrgentChannel getUrgentChannel() throws RemoteException {
+            return mUrgentChannel;
         }
 	};
 
-    // Set the state and fire a callback.
-    private void setState(int newState) {
-        mState = newState;
-        if (mCallback != null) {
-            try {
-                mCallback.onOmniWearEvent(newState);
-            } catch (RemoteException e) {
-                e.printStackTrace();
+    // One search for an OmniWear device. The controller filters on our service or name, so only
+    // OmniWear devices reach the callback. The first match opens a short settle window and the
+    // strongest device seen by its end is the one we connect to.
+    private class DeviceScan extends ScanCallback {
+
+        private final BluetoothLeScanner mScanner;
+        private long mStartTime = 0;
+
+        // Strongest device seen so far.
+        private ScanResult mBest = null;
+        private int mMatches = 0;
+
+        DeviceScan(BluetoothLeScanner scanner) {
+            mScanner = scanner;
+        }
+
+        void start() {
+            List<ScanFilter> filters = new ArrayList<>();
+            filters.add(new ScanFilter.Builder()
+                    .setServiceUuid(ParcelUuid.fromString(OmniWearDevice.HAPTIC_SERVICE_UUID))
+                    .build());
+            filters.add(new ScanFilter.Builder()
+                    .setDeviceName(BT_NAME)
+                    .build());
+            ScanSettings settings = new ScanSettings.Builder()
+                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                    .build();
+
+            mStartTime = SystemClock.elapsedRealtime();
+            mScanner.startScan(filters, settings, this);
+
+            // Stops scanning after a pre-defined scan period.
+            mHandler.postDelayed(mTimeout, SCAN_PERIOD);
+        }
+
+        // Scan results arrive on the main thread. Move them to the BLE thread with the rest
+        // of the search.
+        @Override
+        public void onScanResult(int callbackType, final ScanResult result) {
+            super.onScanResult(callbackType, result);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onMatch(result);
+                }
+            });
+        }
+
+        @Override
+        public void onScanFailed(final int errorCode) {
+            super.onScanFailed(errorCode);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onFailed(errorCode);
+                }
+            });
+        }
+
+        private void onMatch(ScanResult result) {
+
+            if (!mSearching) {
+                return;
+            }
+
+            // Log for debugging.
+            if (isLoggable(3)) {
+                omniwearLog(3, TAG, "Found device: " + result.getDevice().getAddress() +
+                        " rssi " + result.getRssi());
+            }
+
+            // Give other devices nearby a moment to show up before picking one.
+            mMatches++;
+            if (mBest == null) {
+                omniwearLog(4, TAG, "First match after " + (SystemClock.elapsedRealtime() - mStartTime) + " ms");
+                mHandler.postDelayed(mSettled, SETTLE_PERIOD);
+            }
+            if (mBest == null || result.getRssi() > mBest.getRssi()) {
+                mBest = result;
+            }
+        }
+
+        private void onFailed(int errorCode) {
+            omniwearLog(5, TAG, "onScanFailed: " + errorCode);
+            mHandler.removeCallbacks(mTimeout);
+            mHandler.removeCallbacks(mSettled);
+            mSearching = false;
+            setState(OmniWearHelper.EVENT_STATE_NONE);
+        }
+
+        // Connect to the strongest device.
+        private final Runnable mSettled = new Runnable() {
+
+            @Override
+            public void run() {
+
+                // Stop scanning.
+                mScanner.stopScan(DeviceScan.this);
+                mHandler.removeCallbacks(mTimeout);
+                if (!mSearching) {
+                    return;
+                }
+                mSearching = false;
+                omniwearLog(4, TAG, "Device found after " + (SystemClock.elapsedRealtime() - mStartTime) +
+                        " ms: " + mBest.getDevice().getAddress() + " (rssi " + mBest.getRssi() + ", " +
+                        mMatches + " results)");
+
+                // Try to connect.
+                mDispatcher.postEvent(OmniWearHelper.EVENT_DEVICE_FOUND);
+                openDevice(mBest.getDevice().getAddress(), true);
+            }
+        };
+
+        private final Runnable mTimeout = new Runnable() {
+
+            @Override
+            public void run() {
+
+                // Stop scan.
+                mScanner.stopScan(DeviceScan.this);
+                mHandler.removeCallbacks(mSettled);
+
+                // Didn't find our device.
+                if (mSearching) {
+                    mSearching = false;
+                    omniwearLog(4, TAG, "Device not found");
+                    setState(OmniWearHelper.EVENT_STATE_NONE);
+                    mDispatcher.postEvent(OmniWearHelper.EVENT_DEVICE_NOT_FOUND);
+                }
+            }
+        };
+    }
+
+    // Connect to a device unless it is already connected or connecting. Returns its handle,
+    // or OmniWearHelper.DEVICE_NONE on error.
+    private int openDevice(String deviceMacAddress, boolean primary) {
+
+        // Error check.
+        if (deviceMacAddress == null || !BluetoothAdapter.checkBluetoothAddress(deviceMacAddress)) {
+            omniwearLog(6, TAG, "connectDevice: invalid deviceMacAddress " + deviceMacAddress);
+            return OmniWearHelper.DEVICE_NONE;
+        }
+
+        final OmniWearDevice device;
+        synchronized (mDevices) {
+
+            // Already connected or connecting.
+            for (int i = 0; i < mDevices.size(); i++) {
+                if (mDevices.valueAt(i).getAddress().equals(deviceMacAddress)) {
+                    omniwearLog(5, TAG, "connectDevice: already connected or connecting to " + deviceMacAddress);
+                    if (primary) {
+                        mPrimaryHandle = mDevices.keyAt(i);
+                    }
+                    return mDevices.keyAt(i);
+                }
+            }
+
+            // Create the device using the MAC.
+            device = new OmniWearDevice(mNextHandle++, mBluetoothAdapter.getRemoteDevice(deviceMacAddress),
+                    mProfileCache, mHandler, mDeviceListener);
+            mDevices.put(device.getHandle(), device);
+            if (primary) {
+                mPrimaryHandle = device.getHandle();
             }
-        } else {
-            omniwearLog(6, TAG, "mCallback is null in setState");
         }
+
+        // Connect! The handle is ours straight away; the connection is made on the BLE thread.
+        final int timeoutMs = mConnectTimeoutMs;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                device.connect(OmniWearService.this, timeoutMs);
+            }
+        });
+        return device.getHandle();
     }
 
-    // Way to get logging both in the Service and in the app.
+    // Map a pattern file and decode it. Takes ownership of the descriptor.
+    private KeyframePattern mapPatternFile(ParcelFileDescriptor patternFile) throws IOException {
+        FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(patternFile);
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > MAX_PATTERN_FILE_SIZE) {
+                throw new IOException("file too large");
+            }
+            return PatternFile.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    // Look up a device by handle. Returns null if there is no such device.
+    private OmniWearDevice getDevice(int deviceHandle) {
+        if (deviceHandle == OmniWearHelper.DEVICE_PRIMARY) {
+            deviceHandle = mPrimaryHandle;
+        }
+        synchronized (mDevices) {
+            return mDevices.get(deviceHandle);
+        }
+    }
+
+    // Look up a device that is ready for motor commands, logging why not if it isn't.
+    private OmniWearDevice getConnectedDevice(int deviceHandle, String caller) {
+        OmniWearDevice device = getDevice(deviceHandle);
+        if (device == null || !device.isConnected()) {
+            omniwearLog(5, TAG, caller + ": OmniWear device not connected.");
+            return null;
+        }
+        return device;
+    }
+
+    // Set the state of the primary device and fire a callback.
+    private void setState(int newState) {
+        mDispatcher.postEvent(newState);
+    }
+
+    // Fire a callback for an event on one device.
+    private void fireDeviceEvent(int deviceHandle, int event) {
+        mDispatcher.postDeviceEvent(deviceHandle, event);
+    }
+
+    // Whether a log line at this level goes anywhere. Check before building messages on hot
+    // paths.
+    private boolean isLoggable(int priority) {
+        return priority >= LOGCAT_LEVEL || mDispatcher.isLoggable(priority);
+    }
+
+    // Way to get logging both in the Service and in the apps.
     private void omniwearLog(int priority, String tag, String msg) {
         Log.println(priority, tag, msg);
-        try {
-            mCallback.onOmniWearLog(priority, tag, msg);
-        } catch (RemoteException e) {
-            e.printStackTrace();
+        mDispatcher.postLog(priority, tag, msg);
+    }
+
+    // A copy of the devices, for working on each without holding the lock.
+    private OmniWearDevice[] getDevices() {
+        synchronized (mDevices) {
+            OmniWearDevice[] devices = new OmniWearDevice[mDevices.size()];
+            for (int i = 0; i < devices.length; i++) {
+                devices[i] = mDevices.valueAt(i);
+            }
+            return devices;
         }
     }
 
-    // Cleanup.
-    private void stop() {
+    // Cleanup. Called on the BLE thread.
+    private void disconnectAll() {
 
-        if (mBluetoothGatt == null) {
-            return;
+        // Closing a device removes it from mDevices, so work on a copy.
+        for (OmniWearDevice device : getDevices()) {
+            device.close();
         }
-        omniwearLog(4, TAG, "stop");
-        mDeviceType = OmniWearHelper.DEVICETYPE_ERROR;
-        mConnectedDeviceMAC = "";
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
-        mHapticService = null;
-        mHapticCharacteristic = null;
-        setState(OmniWearHelper.EVENT_STATE_NONE);
     }
 }
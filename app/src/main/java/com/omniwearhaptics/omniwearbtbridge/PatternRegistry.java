@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.omniwearhaptics.omniwearbtbridge;
+
+import com.omniwearhaptics.core.KeyframePattern;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Patterns registered by clients, so each play is one int over binder instead of the whole
+ * pattern. A pattern belongs to the client that registered it and stays until that client
+ * unregisters it or dies.
+ *
+ * Thread safe.
+ */
+class PatternRegistry {
+
+    // Most patterns one client may have registered at a time.
+    static final int MAX_PATTERNS_PER_CLIENT = 256;
+
+    static final int NO_PATTERN = -1;
+
+    // Told about patterns removed because their client died or unregistered them, e.g. to
+    // stop them playing.
+    interface Listener {
+        void onPatternRemoved(KeyframePattern pattern);
+    }
+
+    private final Listener mListener;
+    private final SparseArray<KeyframePattern> mPatterns = new SparseArray<>();
+    private final SparseArray<IBinder> mOwners = new SparseArray<>();
+    private final Map<IBinder, Client> mClients = new HashMap<>();
+    private int mNextHandle = 1;
+
+    // The patterns of one client, dropped together when it dies.
+    private class Client implements IBinder.DeathRecipient {
+
+        final IBinder mBinder;
+        final List<Integer> mHandles = new ArrayList<>();
+
+        Client(IBinder binder) {
+            mBinder = binder;
+        }
+
+        @Override
+        public void binderDied() {
+            removeClient(mBinder);
+        }
+    }
+
+    PatternRegistry(Listener listener) {
+        mListener = listener;
+    }
+
+    // Register a pattern for a client. Returns its handle, or NO_PATTERN if the client is
+    // dead or has too many patterns.
+    synchronized int register(IBinder owner, KeyframePattern pattern) {
+        Client client = mClients.get(owner);
+        if (client == null) {
+            client = new Client(owner);
+            try {
+                owner.linkToDeath(client, 0);
+            } catch (RemoteException e) {
+                return NO_PATTERN;
+            }
+            mClients.put(owner, client);
+        }
+        if (client.mHandles.size() >= MAX_PATTERNS_PER_CLIENT) {
+            return NO_PATTERN;
+        }
+
+        int handle = mNextHandle++;
+        mPatterns.put(handle, pattern);
+        mOwners.put(handle, owner);
+        client.mHandles.add(handle);
+        return handle;
+    }
+
+    // The pattern with this handle, or null if owner has no such pattern.
+    synchronized KeyframePattern get(IBinder owner, int handle) {
+        if (mOwners.get(handle) != owner) {
+            return null;
+        }
+        return mPatterns.get(handle);
+    }
+
+    // Remove a pattern. Only its owner may. Returns false if it has no such pattern.
+    boolean unregister(IBinder owner, int handle) {
+        KeyframePattern pattern;
+        synchronized (this) {
+            pattern = mPatterns.get(handle);
+            if (pattern == null || mOwners.get(handle) != owner) {
+                return false;
+            }
+            mPatterns.remove(handle);
+            mOwners.remove(handle);
+            Client client = mClients.get(owner);
+            client.mHandles.remove(Integer.valueOf(handle));
+            if (client.mHandles.isEmpty()) {
+                owner.unlinkToDeath(client, 0);
+                mClients.remove(owner);
+            }
+        }
+        mListener.onPatternRemoved(pattern);
+        return true;
+    }
+
+    // Remove every pattern of a client.
+    void removeClient(IBinder owner) {
+        List<KeyframePattern> removed = new ArrayList<>();
+        synchronized (this) {
+            Client client = mClients.remove(owner);
+            if (client == null) {
+                return;
+            }
+            owner.unlinkToDeath(client, 0);
+            for (int handle : client.mHandles) {
+                removed.add(mPatterns.get(handle));
+                mPatterns.remove(handle);
+                mOwners.remove(handle);
+            }
+        }
+        for (KeyframePattern pattern : removed) {
+            mListener.onPatternRemoved(pattern);
+        }
+    }
+}
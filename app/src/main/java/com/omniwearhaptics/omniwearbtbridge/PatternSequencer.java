@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.omniwearbtbridge;
+
+import com.omniwearhaptics.core.KeyframePattern;
+import com.omniwearhaptics.core.KeyframeTimeline;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Plays a {@link KeyframePattern} on a Handler, so the timing of each step is decided in the
+ * service rather than by a client making one binder call per step. The
+ * {@link KeyframeTimeline} decides what is due; this class only keeps the clock.
+ */
+class PatternSequencer {
+
+    private final Handler mHandler;
+    private final KeyframeTimeline.Listener mListener;
+
+    // Playback state.
+    private KeyframeTimeline mTimeline = null;
+
+    private final Runnable mStep = new Runnable() {
+        @Override
+        public void run() {
+            step();
+        }
+    };
+
+    PatternSequencer(Handler handler, KeyframeTimeline.Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    // Start playing a pattern, replacing whatever is playing.
+    synchronized void play(KeyframePattern pattern, boolean loop) {
+        mHandler.removeCallbacks(mStep);
+        mTimeline = new KeyframeTimeline(pattern, loop, SystemClock.uptimeMillis());
+        step();
+    }
+
+    // Stop playback. Returns the pattern that was playing, or null.
+    synchronized KeyframePattern stop() {
+        mHandler.removeCallbacks(mStep);
+        KeyframePattern pattern = mTimeline == null ? null : mTimeline.getPattern();
+        mTimeline = null;
+        return pattern;
+    }
+
+    synchronized boolean isPlaying() {
+        return mTimeline != null;
+    }
+
+    synchronized boolean isPlaying(KeyframePattern pattern) {
+        return mTimeline != null && mTimeline.getPattern() == pattern;
+    }
+
+    // Milliseconds into the current pass, or -1 if nothing is playing.
+    synchronized int getProgress() {
+        if (mTimeline == null) {
+            return -1;
+        }
+        return (int) mTimeline.getProgress(SystemClock.uptimeMillis());
+    }
+
+    // Fire every keyframe that is due, then schedule the next one.
+    private synchronized void step() {
+
+        if (mTimeline == null) {
+            return;
+        }
+        long next = mTimeline.advance(SystemClock.uptimeMillis(), mListener);
+        if (next < 0) {
+            mTimeline = null;
+            return;
+        }
+        mHandler.postAtTime(mStep, next);
+    }
+}
@@ -14,6 +14,7 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.widget.Button;
 import android.widget.SeekBar;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ViewAnimator;
@@ -40,6 +41,7 @@ public class MainActivity extends ActivityBase {
     private static boolean mLogShown = false;
     private static OmniWearHelper mHelper;
     private static byte mIntensity = 100;
+    private StressTestController mStressTest = null;
     private static final String PREFS_NAME = "OmniWearPrefs";
     private static final String SAVED_MAC_PREF_NAME = "omniwear_device_mac";
 
@@ -68,6 +70,26 @@ public class MainActivity extends ActivityBase {
                 // Do nothing.
             }
         });
+
+        // Set up the stress test rate slider.
+        SeekBar rateSlider = (SeekBar) findViewById(R.id.stress_rate);
+        setStressRateLabel(rateSlider.getProgress());
+        rateSlider.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int rate, boolean b) {
+                setStressRateLabel(rate);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+                // Do nothing.
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                // Do nothing.
+            }
+        });
     }
 
     @Override
@@ -126,6 +148,7 @@ public class MainActivity extends ActivityBase {
                                     break;
                                 case OmniWearHelper.EVENT_STATE_NONE:
                                     setStatusMessage(getString(R.string.status_not_connected));
+                                    stopStressTest();
                                     hideButtons();
                                     break;
                                 case OmniWearHelper.EVENT_DEVICE_FOUND:
@@ -167,6 +190,7 @@ public class MainActivity extends ActivityBase {
     @Override
     public void onPause() {
         super.onPause();
+        stopStressTest();
         if (mHelper != null) {mHelper.shutdown();}
         // Force quitting the app since we should actually be disabling all the buttons here (but we aren't).
         // If we didn't force quit here, we'd have a crash later on if we tried to use the buttons before pairing.
@@ -216,6 +240,50 @@ public class MainActivity extends ActivityBase {
         }
     }
 
+    // Start or stop the stress test.
+    public void onStressButtonClicked(View view) {
+
+        if (mStressTest != null && mStressTest.isRunning()) {
+            stopStressTest();
+            return;
+        }
+        if (mHelper == null || mHelper.getDeviceState(OmniWearHelper.DEVICE_PRIMARY) != OmniWearHelper.EVENT_STATE_CONNECTED) {
+            Toast.makeText(this, "Connect a device first", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (mStressTest == null) {
+            mStressTest = new StressTestController(mHelper, new StressTestController.Listener() {
+                @Override
+                public void onReport(final String report) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            ((TextView) findViewById(R.id.stress_stats)).setText(report);
+                        }
+                    });
+                }
+            });
+        }
+        int pattern = ((Spinner) findViewById(R.id.stress_pattern)).getSelectedItemPosition();
+        int rate = ((SeekBar) findViewById(R.id.stress_rate)).getProgress();
+        Log.i(TAG, "Stress test: pattern " + pattern + " at " + rate + "/s");
+        mStressTest.start(pattern, rate, mIntensity);
+        ((Button) findViewById(R.id.button_stress)).setText(R.string.stop_stress);
+    }
+
+    // Stop the stress test if it's running.
+    private void stopStressTest() {
+        if (mStressTest != null) {
+            mStressTest.stop();
+            mStressTest = null;
+        }
+        ((Button) findViewById(R.id.button_stress)).setText(R.string.start_stress);
+    }
+
+    private void setStressRateLabel(int rate) {
+        ((TextView) findViewById(R.id.stress_rate_label)).setText(getString(R.string.stress_rate, Math.max(1, rate)));
+    }
+
     // Show or toggle the log.
     public void onToggleLogButtonClicked(View view) {
 
@@ -0,0 +1,219 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.testapp;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.omniwearhaptics.api.OmniWearHelper;
+import com.omniwearhaptics.api.OmniWearStats;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Drives motor commands through OmniWearHelper at a fixed rate and reports what the bridge
+ * achieved, for qualifying firmware and phones under load.
+ *
+ * Commands are sent from a thread of their own, on a schedule fixed at start, so a slow
+ * binder call doesn't lower the offered rate - the next tick sends whatever fell due.
+ */
+class StressTestController {
+
+    // Patterns.
+    static final int PATTERN_SINGLE = 0;
+    static final int PATTERN_ROUND_ROBIN = 1;
+    static final int PATTERN_SWEEP = 2;
+
+    // How often the service's stats are read.
+    private static final long REPORT_PERIOD_MS = 500;
+
+    // Most commands sent in one tick if the schedule fell behind.
+    private static final int MAX_BURST = 50;
+
+    // Receives a summary every report period, on the stress thread.
+    interface Listener {
+        void onReport(String report);
+    }
+
+    private final OmniWearHelper mHelper;
+    private final Listener mListener;
+    private StressRun mRun = null;
+
+    StressTestController(OmniWearHelper helper, Listener listener) {
+        mHelper = helper;
+        mListener = listener;
+    }
+
+    boolean isRunning() {
+        return mRun != null;
+    }
+
+    // Start sending. rate is in commands per second.
+    void start(int pattern, int rate, byte intensity) {
+        stop();
+        int motorCount = Math.max(1, Math.min(mHelper.getConnectedDeviceType(), OmniWearHelper.DEVICETYPE_CAP));
+        mHelper.resetStats(OmniWearHelper.DEVICE_PRIMARY);
+        mRun = new StressRun(pattern, Math.max(1, rate), intensity, motorCount);
+    }
+
+    // Stop sending and turn the motors off.
+    void stop() {
+        if (mRun != null) {
+            mRun.stop();
+            mRun = null;
+        }
+    }
+
+    // One run, on its own thread. Everything but stop() happens on that thread.
+    private class StressRun {
+
+        private final int mPattern;
+        private final int mRate;
+        private final byte mIntensity;
+        private final byte[] mFrame;
+        private final HandlerThread mThread;
+        private final Handler mHandler;
+        private volatile boolean mRunning = true;
+
+        // Progress.
+        private final long mStartTime;
+        private long mSent = 0;
+        private long mLastReportTime;
+        private long mLastReportSent = 0;
+        private long mLastReportSubmitted = 0;
+        private long mLastReportCompleted = 0;
+
+        StressRun(int pattern, int rate, byte intensity, int motorCount) {
+            mPattern = pattern;
+            mRate = rate;
+            mIntensity = intensity;
+            mFrame = new byte[motorCount];
+
+            mThread = new HandlerThread("OmniWearStress", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+            mStartTime = SystemClock.uptimeMillis();
+            mLastReportTime = mStartTime;
+            mHandler.post(mTick);
+            mHandler.postDelayed(mReport, REPORT_PERIOD_MS);
+        }
+
+        void stop() {
+            mRunning = false;
+            mHandler.removeCallbacks(mTick);
+            mHandler.removeCallbacks(mReport);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mHelper.setMotors(new byte[mFrame.length]);
+                    mThread.quitSafely();
+                }
+            });
+        }
+
+        // Send every command that has fallen due, then wait for the next.
+        private final Runnable mTick = new Runnable() {
+            @Override
+            public void run() {
+                if (!mRunning) {
+                    return;
+                }
+                long now = SystemClock.uptimeMillis();
+                long due = (now - mStartTime) * mRate / 1000 + 1;
+                int burst = 0;
+                while (mSent < due && burst < MAX_BURST) {
+                    send(mSent++);
+                    burst++;
+                }
+
+                // Skip what couldn't be sent rather than bursting forever.
+                if (mSent < due) {
+                    mSent = due;
+                }
+                long next = mStartTime + (mSent * 1000 + mRate - 1) / mRate;
+                mHandler.postAtTime(this, Math.max(next, now + 1));
+            }
+        };
+
+        private void send(long n) {
+            int motorCount = mFrame.length;
+            switch (mPattern) {
+                case PATTERN_SINGLE:
+
+                    // One motor, on and off.
+                    mHelper.setMotor((byte) 0, n % 2 == 0 ? mIntensity : OmniWearHelper.OFF);
+                    break;
+                case PATTERN_ROUND_ROBIN:
+
+                    // Each motor in turn, on for one pass and off for the next.
+                    boolean on = (n / motorCount) % 2 == 0;
+                    mHelper.setMotor((byte) (n % motorCount), on ? mIntensity : OmniWearHelper.OFF);
+                    break;
+                case PATTERN_SWEEP:
+
+                    // A full frame with a peak moving around the motors and a fading tail.
+                    int peak = (int) (n % motorCount);
+                    for (int i = 0; i < motorCount; i++) {
+                        int distance = (peak - i + motorCount) % motorCount;
+                        mFrame[i] = (byte) ((mIntensity & 0xff) >> Math.min(distance, 7));
+                    }
+                    mHelper.setMotors(Arrays.copyOf(mFrame, motorCount));
+                    break;
+            }
+        }
+
+        // Read the service's stats and summarize the last period.
+        private final Runnable mReport = new Runnable() {
+            @Override
+            public void run() {
+                if (!mRunning) {
+                    return;
+                }
+                OmniWearStats stats = mHelper.getStats();
+                long now = SystemClock.uptimeMillis();
+                double seconds = Math.max(1, now - mLastReportTime) / 1000.0;
+                if (stats != null) {
+                    long completed = stats.getSamples(OmniWearStats.STAGE_LINK);
+                    mListener.onReport(String.format(Locale.US,
+                            "offered %.0f/s  written %.0f/s  acked %.0f/s  limit %.0f/s\n" +
+                            "coalesced %d  suppressed %d  dropped %d  failed %d\n%s\n%s\n%s\n%s",
+                            (mSent - mLastReportSent) / seconds,
+                            (stats.writesSubmitted - mLastReportSubmitted) / seconds,
+                            (completed - mLastReportCompleted) / seconds,
+                            stats.rateLimit,
+                            stats.coalesced, stats.suppressed, stats.dropped, stats.writesFailed,
+                            formatStage("binder", stats, OmniWearStats.STAGE_BINDER),
+                            formatStage("queue ", stats, OmniWearStats.STAGE_QUEUE),
+                            formatStage("link  ", stats, OmniWearStats.STAGE_LINK),
+                            formatStage("total ", stats, OmniWearStats.STAGE_TOTAL)));
+                    mLastReportSubmitted = stats.writesSubmitted;
+                    mLastReportCompleted = completed;
+                } else {
+                    mListener.onReport("No stats - is a device connected?");
+                }
+                mLastReportSent = mSent;
+                mLastReportTime = now;
+                mHandler.postDelayed(this, REPORT_PERIOD_MS);
+            }
+        };
+    }
+
+    private static String formatStage(String name, OmniWearStats stats, int stage) {
+        return String.format(Locale.US, "%s p50 %6.1f  p99 %6.1f  max %6.1f ms", name,
+                stats.getP50Us(stage) / 1000.0, stats.getP99Us(stage) / 1000.0, stats.getMaxUs(stage) / 1000.0);
+    }
+}
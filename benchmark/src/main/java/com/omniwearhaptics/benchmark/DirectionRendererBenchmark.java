@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.benchmark;
+
+import com.omniwearhaptics.core.DirectionRenderer;
+import com.omniwearhaptics.core.MotorCommandQueue;
+import com.omniwearhaptics.core.SimulatedDevice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering a direction to a frame, alone and through the command queue, as setDirection does
+ * for a client sweeping around the device.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DirectionRendererBenchmark {
+
+    @Param({"13", "8"})
+    public int deviceType;
+
+    private DirectionRenderer mRenderer;
+    private MotorCommandQueue mQueue;
+    private final byte[] mFrame = new byte[SimulatedDevice.TYPE_CAP];
+    private float mAzimuth;
+
+    @Setup
+    public void setUp() {
+        mRenderer = DirectionRenderer.forDeviceType(deviceType);
+        mQueue = new MotorCommandQueue(SimulatedDevice.TYPE_CAP);
+        mAzimuth = 0;
+    }
+
+    @Benchmark
+    public byte[] render() {
+        mAzimuth = (mAzimuth + 7) % 360;
+        mRenderer.render(mAzimuth, 20, 255, mFrame);
+        return mFrame;
+    }
+
+    @Benchmark
+    public int renderAndQueue() {
+        mAzimuth = (mAzimuth + 7) % 360;
+        int count = mRenderer.render(mAzimuth, 20, 255, mFrame);
+        int queued = mQueue.offerFrame(mFrame, count);
+        while (mQueue.poll() >= 0) {
+            // Drain, as the pipeline would.
+        }
+        return queued;
+    }
+}
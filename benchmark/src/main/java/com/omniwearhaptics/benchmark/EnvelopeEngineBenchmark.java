@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.benchmark;
+
+import com.omniwearhaptics.core.Envelope;
+import com.omniwearhaptics.core.EnvelopeEngine;
+import com.omniwearhaptics.core.KeyframeTimeline;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One tick of the envelope engine with a fade running on every motor of a cap.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EnvelopeEngineBenchmark implements KeyframeTimeline.Listener {
+
+    private static final int MOTORS = 13;
+
+    private final Envelope mEnvelope = Envelope.adsr(255, 128, 50, 50, 200, 200);
+    private EnvelopeEngine mEngine;
+    private long mNow;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setUp() {
+        mEngine = new EnvelopeEngine(MOTORS);
+        mEngine.setTickRate(EnvelopeEngine.MAX_TICK_RATE);
+        mNow = 0;
+        restart();
+    }
+
+    @Benchmark
+    public long tick(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        long next = mEngine.advance(mNow, this);
+        if (next < 0) {
+            restart();
+        } else {
+            mNow = next;
+        }
+        return next;
+    }
+
+    // Start every motor, staggered so they don't all change on the same tick.
+    private void restart() {
+        for (int motor = 0; motor < MOTORS; motor++) {
+            mEngine.start(motor, mEnvelope, mNow + motor);
+        }
+    }
+
+    @Override
+    public void onKeyframe(byte motorId, byte intensity) {
+        mBlackhole.consume(motorId);
+        mBlackhole.consume(intensity);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.benchmark;
+
+import com.omniwearhaptics.core.KeyframePattern;
+import com.omniwearhaptics.core.KeyframeTimeline;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduling a looping pattern: the work done on each step of the sequencer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeyframeTimelineBenchmark implements KeyframeTimeline.Listener {
+
+    private static final int KEYFRAMES = 26;
+
+    private KeyframeTimeline mTimeline;
+    private long mNow;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setUp() {
+
+        // Each of 13 motors on for 20 ms in turn.
+        byte[] motorIds = new byte[KEYFRAMES];
+        byte[] intensities = new byte[KEYFRAMES];
+        int[] offsets = new int[KEYFRAMES];
+        for (int i = 0; i < KEYFRAMES; i += 2) {
+            motorIds[i] = motorIds[i + 1] = (byte) (i / 2);
+            intensities[i] = (byte) 255;
+            offsets[i] = i * 10;
+            offsets[i + 1] = i * 10 + 20;
+        }
+        mTimeline = new KeyframeTimeline(new KeyframePattern(motorIds, intensities, offsets), true, 0);
+        mNow = 0;
+    }
+
+    @Benchmark
+    public long step(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mNow = mTimeline.advance(mNow, this);
+        return mNow;
+    }
+
+    @Override
+    public void onKeyframe(byte motorId, byte intensity) {
+        mBlackhole.consume(motorId);
+        mBlackhole.consume(intensity);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.benchmark;
+
+import com.omniwearhaptics.core.MotorCommand;
+import com.omniwearhaptics.core.MotorCommandQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The command path from a client call to the bytes handed to GATT: enqueue, coalesce,
+ * frame diff, poll and encode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MotorCommandQueueBenchmark {
+
+    // The cap has the most motors.
+    private static final int MOTORS = 13;
+
+    private MotorCommandQueue mQueue;
+    private byte[][] mFrames;
+    private byte[] mPacket;
+    private int mTick;
+
+    @Setup
+    public void setUp() {
+        mQueue = new MotorCommandQueue(MOTORS);
+        mPacket = new byte[MotorCommand.PACKET_SIZE];
+
+        // A sweep around the motors, so each frame changes a couple of them.
+        mFrames = new byte[MOTORS][MOTORS];
+        for (int f = 0; f < MOTORS; f++) {
+            mFrames[f][f] = (byte) 255;
+            mFrames[f][(f + 1) % MOTORS] = (byte) 128;
+        }
+    }
+
+    // One command in and straight out again, as when the link keeps up.
+    @Benchmark
+    public int offerPoll() {
+        mTick++;
+        mQueue.offer((byte) (mTick % MOTORS), (byte) mTick);
+        return mQueue.poll();
+    }
+
+    // A burst of updates to one motor while a write is in flight, then the single write.
+    @Benchmark
+    public int coalesce() {
+        mTick++;
+        for (int i = 0; i < 16; i++) {
+            mQueue.offer((byte) 3, (byte) (mTick + i));
+        }
+        return mQueue.poll();
+    }
+
+    // A full frame diffed against the last one, then drained.
+    @Benchmark
+    public int frameDiff() {
+        mTick++;
+        int queued = mQueue.offerFrame(mFrames[mTick % MOTORS], MOTORS);
+        while (mQueue.poll() >= 0) {
+            queued--;
+        }
+        return queued;
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        mTick++;
+        MotorCommand.encode(MotorCommand.pack((byte) (mTick % MOTORS), (byte) mTick), mPacket);
+        return mPacket;
+    }
+}
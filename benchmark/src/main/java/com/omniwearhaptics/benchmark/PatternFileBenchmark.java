@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.benchmark;
+
+import com.omniwearhaptics.core.KeyframePattern;
+import com.omniwearhaptics.core.PatternCache;
+import com.omniwearhaptics.core.PatternFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a pattern file from memory, as the service does from a mapped file, and finding a
+ * cached one by name.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PatternFileBenchmark {
+
+    private static final int MOTORS = 13;
+    private static final int CACHED_PATTERNS = 200;
+
+    // Frames in the pattern, at 20 ms each.
+    @Param({"50", "500"})
+    public int frames;
+
+    private ByteBuffer mFile;
+    private PatternCache mCache;
+    private final String[] mNames = new String[CACHED_PATTERNS];
+    private int mNext = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        // A wave running around the motors.
+        byte[][] pattern = new byte[frames][MOTORS];
+        for (int i = 0; i < frames; i++) {
+            pattern[i][i % MOTORS] = (byte) 255;
+            pattern[i][(i + 1) % MOTORS] = (byte) 128;
+        }
+        byte[] file = PatternFile.encode(pattern, MOTORS, 20);
+        mFile = ByteBuffer.allocateDirect(file.length);
+        mFile.put(file).flip();
+
+        mCache = new PatternCache(CACHED_PATTERNS * frames * 4);
+        KeyframePattern decoded = PatternFile.decode(mFile);
+        for (int i = 0; i < CACHED_PATTERNS; i++) {
+            mNames[i] = "pattern" + i;
+            mCache.put(mNames[i], decoded);
+        }
+    }
+
+    @Benchmark
+    public KeyframePattern decode() throws IOException {
+        return PatternFile.decode(mFile);
+    }
+
+    @Benchmark
+    public KeyframePattern cacheHit() {
+        mNext = (mNext + 1) % CACHED_PATTERNS;
+        return mCache.get(mNames[mNext]);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.benchmark;
+
+import com.omniwearhaptics.core.AimdRateController;
+import com.omniwearhaptics.core.Clock;
+import com.omniwearhaptics.core.CommandPipeline;
+import com.omniwearhaptics.core.HapticTransport;
+import com.omniwearhaptics.core.SimulatedDevice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The command pipeline driving a simulated device: one 60 Hz frame in, and the link run for
+ * one frame period. Measures the pipeline's own cost per frame; the simulated link decides
+ * how many writes fit in each period.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SimulatedLinkBenchmark implements CommandPipeline.Listener, HapticTransport.Listener {
+
+    private static final long FRAME_PERIOD_US = 16667;
+
+    @Param({"1", "8", "13"})
+    public int deviceType;
+
+    @Param({"7500", "30000"})
+    public long intervalUs;
+
+    @Param({"false", "true"})
+    public boolean streaming;
+
+    @Param({"0", "0.01"})
+    public double failureRate;
+
+    // Pace writes with the rate controller, timed by the simulated clock.
+    @Param({"false", "true"})
+    public boolean paced;
+
+    private SimulatedDevice mDevice;
+    private CommandPipeline mPipeline;
+    private byte[][] mFrames;
+    private int mTick;
+    private long mSubmitted;
+
+    @Setup
+    public void setUp() {
+        mDevice = new SimulatedDevice(deviceType, intervalUs, 42);
+        mDevice.setFailureRate(failureRate);
+        mPipeline = new CommandPipeline(deviceType, this);
+        mPipeline.setStreamingMode(streaming);
+        if (paced) {
+            mPipeline.setRateController(new AimdRateController(), new Clock() {
+                @Override
+                public long nanoTime() {
+                    return mDevice.now() * 1000;
+                }
+            });
+        }
+        mDevice.setListener(this);
+        mDevice.setConnectionListener(new SimulatedDevice.ConnectionListener() {
+            @Override
+            public void onConnected() {
+                mPipeline.setTransport(mDevice);
+            }
+
+            @Override
+            public void onDisconnected() {
+                mPipeline.reset();
+            }
+        });
+        mDevice.connect();
+        mDevice.advance(intervalUs * 10);
+
+        // A sweep around the motors with a fading tail.
+        mFrames = new byte[deviceType][deviceType];
+        for (int f = 0; f < deviceType; f++) {
+            for (int m = 0; m < deviceType; m++) {
+                int distance = (m - f + deviceType) % deviceType;
+                mFrames[f][m] = (byte) Math.max(0, 255 - distance * 64);
+            }
+        }
+    }
+
+    @Benchmark
+    public long frame() {
+        mTick++;
+        mPipeline.getQueue().offerFrame(mFrames[mTick % mFrames.length], deviceType);
+        mPipeline.pump();
+        mDevice.advance(FRAME_PERIOD_US);
+        return mSubmitted;
+    }
+
+    @Override
+    public void onSubmitted(int command, boolean acknowledged) {
+        mSubmitted++;
+    }
+
+    @Override
+    public void onCompleted(int command, boolean acknowledged, boolean success) {
+    }
+
+    @Override
+    public void onWriteComplete(boolean success) {
+        mPipeline.onWriteComplete(success);
+    }
+}
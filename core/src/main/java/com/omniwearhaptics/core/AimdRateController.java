@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+/**
+ * Works out how many writes per second the link can take, from how writes complete, and
+ * paces writes to match with a token bucket.
+ *
+ * The rate grows additively, by INCREASE_PER_SECOND every second that writes keep
+ * succeeding while the rate is what limits them. It is cut multiplicatively when a write
+ * fails or when acknowledgements start taking much longer than the fastest seen recently -
+ * the sign of a queue building up in the stack or the controller. Cuts are spaced
+ * DECREASE_HOLD apart, so one burst of trouble only counts once.
+ *
+ * Times are in nanoseconds from any monotonic clock. Not thread safe.
+ */
+public class AimdRateController {
+
+    // Writes per second.
+    public static final double MIN_RATE = 20;
+    public static final double MAX_RATE = 1000;
+    public static final double INITIAL_RATE = 100;
+    private static final double INCREASE_PER_SECOND = 50;
+
+    // Cuts, and how long after one before the next.
+    private static final double FAILURE_DECREASE = 0.5;
+    private static final double LATENCY_DECREASE = 0.85;
+    private static final long DECREASE_HOLD = 200000000L;
+
+    // Acknowledgements are slow if the average is this much over the recent fastest.
+    private static final double LATENCY_FACTOR = 2;
+    private static final long LATENCY_SLACK = 2000000L;
+
+    // The fastest acknowledgement is taken over windows of this many.
+    private static final int BASELINE_WINDOW = 64;
+
+    // Writes that can go out back to back after a quiet spell.
+    private static final double BURST = 4;
+
+    private double mRate;
+    private boolean mDecreased;
+    private long mLastDecrease;
+
+    // Acknowledgement latency: the recent fastest and a smoothed average, or -1.
+    private long mBaseline;
+    private long mWindowMin;
+    private int mWindowCount;
+    private double mAverage;
+
+    // Token bucket.
+    private double mTokens;
+    private long mLastRefill;
+    private boolean mStarted;
+
+    public AimdRateController() {
+        reset();
+    }
+
+    // Start again from INITIAL_RATE, e.g. on a new connection.
+    public void reset() {
+        mRate = INITIAL_RATE;
+        mDecreased = false;
+        mBaseline = -1;
+        mWindowMin = Long.MAX_VALUE;
+        mWindowCount = 0;
+        mAverage = -1;
+        mTokens = BURST;
+        mStarted = false;
+    }
+
+    // The current estimate of what the link can take, in writes per second.
+    public double getRate() {
+        return mRate;
+    }
+
+    // Time until the next write may go out, or 0 if it may go now.
+    public long getDelay(long now) {
+        refill(now);
+        return mTokens >= 1 ? 0 : (long) Math.ceil((1 - mTokens) * 1e9 / mRate);
+    }
+
+    // A write went out. Writes that skipped the queue may overdraw the bucket, which holds
+    // the next paced ones back.
+    public void onSent(long now) {
+        refill(now);
+        mTokens = Math.max(mTokens - 1, -BURST);
+    }
+
+    // A write completed. latency is from submission to completion, and only counts for
+    // acknowledged writes.
+    public void onComplete(long now, boolean success, boolean acknowledged, long latency) {
+
+        if (!success) {
+            decrease(now, FAILURE_DECREASE);
+            return;
+        }
+        if (acknowledged && isSlow(latency)) {
+            decrease(now, LATENCY_DECREASE);
+            return;
+        }
+
+        // Only grow while the rate is what holds writes back. One write per mRate seconds adds
+        // INCREASE_PER_SECOND a second.
+        refill(now);
+        if (mTokens < 1) {
+            mRate = Math.min(MAX_RATE, mRate + INCREASE_PER_SECOND / mRate);
+        }
+    }
+
+    // Fold in an acknowledgement's latency. Returns whether acknowledgements are slow.
+    private boolean isSlow(long latency) {
+        mWindowMin = Math.min(mWindowMin, latency);
+        if (mBaseline < 0 || mWindowMin < mBaseline) {
+            mBaseline = mWindowMin;
+        }
+        if (++mWindowCount >= BASELINE_WINDOW) {
+            mBaseline = mWindowMin;
+            mWindowMin = Long.MAX_VALUE;
+            mWindowCount = 0;
+        }
+        mAverage = mAverage < 0 ? latency : mAverage + (latency - mAverage) / 8;
+        return mAverage > mBaseline * LATENCY_FACTOR + LATENCY_SLACK;
+    }
+
+    private void decrease(long now, double factor) {
+        if (mDecreased && now - mLastDecrease < DECREASE_HOLD) {
+            return;
+        }
+        mDecreased = true;
+        mLastDecrease = now;
+        mRate = Math.max(MIN_RATE, mRate * factor);
+
+        // Give the link a chance to drain before judging latency again.
+        mAverage = -1;
+    }
+
+    private void refill(long now) {
+        if (!mStarted) {
+            mStarted = true;
+            mLastRefill = now;
+            return;
+        }
+        mTokens = Math.min(BURST, mTokens + (now - mLastRefill) * mRate / 1e9);
+        mLastRefill = now;
+    }
+}
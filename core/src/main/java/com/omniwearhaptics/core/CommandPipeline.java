@@ -0,0 +1,315 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+/**
+ * Drains two {@link MotorCommandQueue}s, an urgent lane and an ambient lane, onto a
+ * {@link HapticTransport}, one write at a time.
+ *
+ * Urgent commands always go first. An urgent command that turns a motor on also claims it:
+ * ambient commands for that motor, e.g. from a pattern or a background effect, are held back
+ * until an urgent command turns it off again. The motor then goes back to the last intensity
+ * the ambient lane asked for, whether that was asked before or during the claim. So an alert
+ * is never overwritten or delayed by ambient traffic, apart from the one write that may
+ * already be in flight.
+ *
+ * With a rate controller, the ambient lane is paced to the rate the controller thinks the
+ * link can take. Ambient commands wait in their queue meanwhile, where newer values replace
+ * older ones, so how much is coalesced follows the link. Urgent commands are never paced,
+ * but they use up the rate like any other write.
+ *
+ * In streaming mode, writes go out without waiting for the device to acknowledge them, as
+ * long as credits last. Each acknowledged write refills the credits, which confirms the
+ * device is keeping up. Turning a motor off is state-critical, so it is always acknowledged.
+ *
+ * The pipeline remembers the intensity each motor was last written to, and doesn't write a
+ * command that wouldn't change it. A write counts once it completes successfully: the link
+ * layer retransmits until delivery, so a streamed write that got out only fails to arrive if
+ * the connection drops, and then the transport is detached and everything is forgotten. A
+ * write that fails goes back to the front of its lane, unless a newer command for the motor
+ * is already waiting there, so the last requested intensity still reaches the device. It is
+ * retried MAX_RETRIES times and then dropped, so a command the device always rejects can't
+ * hold up the lanes.
+ *
+ * Not thread safe - callers synchronize on the pipeline.
+ */
+public class CommandPipeline {
+
+    // Unacknowledged writes allowed before an acknowledged one is forced.
+    public static final int STREAM_CREDITS = 8;
+
+    // Times a failed write is tried again before it is dropped.
+    public static final int MAX_RETRIES = 1;
+
+    private static final byte OFF = 0;
+
+    // Marks a motor whose intensity on the device isn't known.
+    private static final int UNKNOWN = -1;
+
+    // Told about each write, e.g. for timing.
+    public interface Listener {
+        void onSubmitted(int command, boolean acknowledged);
+        void onCompleted(int command, boolean acknowledged, boolean success);
+    }
+
+    // The lanes.
+    private final MotorCommandQueue mQueue;
+    private final MotorCommandQueue mUrgentQueue;
+
+    // Per motor: whether urgent commands have claimed it.
+    private final boolean[] mClaimed;
+
+    private final Listener mListener;
+    private final byte[] mPacket = new byte[MotorCommand.PACKET_SIZE];
+    private HapticTransport mTransport = null;
+
+    // The write in flight.
+    private boolean mWriteInFlight = false;
+    private int mInFlightCommand = 0;
+    private boolean mInFlightAcknowledged = true;
+    private boolean mInFlightUrgent = false;
+
+    // Per motor: the command whose write last failed, or -1, and how many times in a row.
+    private final int[] mFailedCommands;
+    private final int[] mFailures;
+
+    // Streaming mode.
+    private boolean mStreamingMode = false;
+    private int mStreamCredits = 0;
+
+    // Intensity per motor as last written to the device, or UNKNOWN.
+    private final int[] mDeviceValues;
+    private long mSuppressedCount = 0;
+
+    // Pacing, if any, and when the write in flight went out.
+    private AimdRateController mRateController = null;
+    private Clock mClock = Clock.SYSTEM;
+    private long mInFlightSubmitTime = 0;
+
+    public CommandPipeline(int maxMotors, Listener listener) {
+        mQueue = new MotorCommandQueue(maxMotors);
+        mUrgentQueue = new MotorCommandQueue(maxMotors);
+        mClaimed = new boolean[maxMotors];
+        mListener = listener;
+        mDeviceValues = new int[maxMotors];
+        mFailedCommands = new int[maxMotors];
+        mFailures = new int[maxMotors];
+        forget();
+        releaseAll();
+    }
+
+    // The ambient lane.
+    public MotorCommandQueue getQueue() {
+        return mQueue;
+    }
+
+    // Add a command to a lane. Returns false if the motor ID is out of range.
+    public boolean offer(byte motorId, byte intensity, boolean urgent) {
+        if (!urgent) {
+            return mQueue.offer(motorId, intensity);
+        }
+        if (!mUrgentQueue.offer(motorId, intensity)) {
+            return false;
+        }
+
+        // Claim the motor, or hand it back to the ambient lane at the intensity that lane last
+        // asked for. An ambient command already waiting is that intensity.
+        boolean claimed = mClaimed[motorId];
+        mClaimed[motorId] = intensity != OFF;
+        if (claimed && !mClaimed[motorId]) {
+            mQueue.refresh(motorId);
+        }
+        return true;
+    }
+
+    public long getCoalescedCount() {
+        return mQueue.getCoalescedCount() + mUrgentQueue.getCoalescedCount();
+    }
+
+    public long getDroppedCount() {
+        return mQueue.getDroppedCount() + mUrgentQueue.getDroppedCount();
+    }
+
+    // Start writing to a transport, or stop with null. The caller routes the transport's
+    // completions to onWriteComplete.
+    public void setTransport(HapticTransport transport) {
+        mTransport = transport;
+        mWriteInFlight = false;
+        mStreamCredits = 0;
+        forget();
+        if (mRateController != null) {
+            mRateController.reset();
+        }
+    }
+
+    public void setStreamingMode(boolean enabled) {
+        mStreamingMode = enabled;
+    }
+
+    // Pace the ambient lane with a rate controller timed by clock, or stop pacing with null.
+    public void setRateController(AimdRateController controller, Clock clock) {
+        mRateController = controller;
+        mClock = clock;
+    }
+
+    // The rate the ambient lane is paced to, in writes per second, or 0 if it isn't.
+    public double getRateLimit() {
+        return mRateController == null ? 0 : mRateController.getRate();
+    }
+
+    // Write the next queued command if the link is free. Returns 0, or if the ambient lane is
+    // waiting on the rate limit, the nanoseconds until it may go - pump again then.
+    public long pump() {
+
+        if (mWriteInFlight || mTransport == null) {
+            return 0;
+        }
+        long now = mClock.nanoTime();
+        if (mRateController != null && mUrgentQueue.isEmpty() && !mQueue.isEmpty()) {
+            long delay = mRateController.getDelay(now);
+            if (delay > 0) {
+                return delay;
+            }
+        }
+        int command = nextCommand();
+        if (command < 0) {
+            return 0;
+        }
+        MotorCommand.encode(command, mPacket);
+
+        // In streaming mode, skip the acknowledgement while credits last.
+        boolean streamable = mStreamingMode && mStreamCredits > 0 &&
+                MotorCommand.intensityOf(command) != OFF &&
+                mTransport.canWriteWithoutResponse();
+        mWriteInFlight = mTransport.write(mPacket, !streamable);
+
+        // The link is busy with another operation - try again on its callback.
+        if (!mWriteInFlight) {
+            (mInFlightUrgent ? mUrgentQueue : mQueue).requeue(command);
+            return 0;
+        }
+        if (streamable) {
+            mStreamCredits--;
+        }
+        if (mRateController != null) {
+            mRateController.onSent(now);
+        }
+        mInFlightCommand = command;
+        mInFlightAcknowledged = !streamable;
+        mInFlightSubmitTime = now;
+        mListener.onSubmitted(command, mInFlightAcknowledged);
+        return 0;
+    }
+
+    // The write in flight finished. Sends whatever queued up in the meantime, and returns as
+    // pump does.
+    public long onWriteComplete(boolean success) {
+
+        if (!mWriteInFlight) {
+            return 0;
+        }
+        if (mRateController != null) {
+            long now = mClock.nanoTime();
+            mRateController.onComplete(now, success, mInFlightAcknowledged, now - mInFlightSubmitTime);
+        }
+        byte motorId = MotorCommand.motorOf(mInFlightCommand);
+        mDeviceValues[motorId] = success ? MotorCommand.intensityOf(mInFlightCommand) & 0xff : UNKNOWN;
+        if (!success) {
+            // Try it again, unless a newer command for the motor is waiting or it has failed
+            // too often.
+            MotorCommandQueue lane = mInFlightUrgent ? mUrgentQueue : mQueue;
+            lane.countDropped();
+            if (mFailedCommands[motorId] != mInFlightCommand) {
+                mFailedCommands[motorId] = mInFlightCommand;
+                mFailures[motorId] = 0;
+            }
+            if (++mFailures[motorId] <= MAX_RETRIES) {
+                lane.requeue(mInFlightCommand);
+            } else {
+                mFailedCommands[motorId] = -1;
+            }
+
+            // Stop streaming blind until an acknowledged write gets through.
+            mStreamCredits = 0;
+        } else {
+            mFailedCommands[motorId] = -1;
+            if (mInFlightAcknowledged) {
+                mStreamCredits = STREAM_CREDITS;
+            }
+        }
+        mWriteInFlight = false;
+        mListener.onCompleted(mInFlightCommand, mInFlightAcknowledged, success);
+        return pump();
+    }
+
+    // Write every motor's last requested intensity again, whether or not the device should
+    // already hold it, e.g. if the device may have reset without disconnecting.
+    public void forceRefresh() {
+        forget();
+        mUrgentQueue.refresh();
+        mQueue.refresh();
+    }
+
+    // Commands not written because the device already held the intensity.
+    public long getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    // Take the next command worth writing, urgent lane first, or -1. Skips commands the
+    // device already holds and ambient commands for claimed motors, which the ambient lane
+    // still remembers for when the claim ends.
+    private int nextCommand() {
+        while (true) {
+            mInFlightUrgent = !mUrgentQueue.isEmpty();
+            int command = mInFlightUrgent ? mUrgentQueue.poll() : mQueue.poll();
+            if (command < 0) {
+                return -1;
+            }
+            byte motorId = MotorCommand.motorOf(command);
+            if (!mInFlightUrgent && mClaimed[motorId]) {
+                continue;
+            }
+            if (isOnDevice(command)) {
+                mSuppressedCount++;
+            } else {
+                return command;
+            }
+        }
+    }
+
+    private boolean isOnDevice(int command) {
+        return mDeviceValues[MotorCommand.motorOf(command)] == (MotorCommand.intensityOf(command) & 0xff);
+    }
+
+    private void forget() {
+        for (int i = 0; i < mDeviceValues.length; i++) {
+            mDeviceValues[i] = UNKNOWN;
+            mFailedCommands[i] = -1;
+        }
+    }
+
+    private void releaseAll() {
+        for (int i = 0; i < mClaimed.length; i++) {
+            mClaimed[i] = false;
+        }
+    }
+
+    // Throw away everything pending and detach from the transport, e.g. on disconnect.
+    public void reset() {
+        mQueue.clear();
+        mUrgentQueue.clear();
+        releaseAll();
+        setTransport(null);
+    }
+}
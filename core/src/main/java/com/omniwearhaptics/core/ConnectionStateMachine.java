@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+/**
+ * Connection state of one device, and the moves allowed between states.
+ *
+ * The state values match the EVENT_STATE_ constants in the client API.
+ *
+ *   NONE -> CONNECTING -> CONNECTED
+ *     ^         |            |
+ *     +---------+------------+
+ *
+ * SEARCHING only describes the service as a whole, never a single device.
+ */
+public class ConnectionStateMachine {
+
+    public static final int NONE = 0;
+    public static final int SEARCHING = 1;
+    public static final int CONNECTING = 2;
+    public static final int CONNECTED = 3;
+
+    private volatile int mState = NONE;
+
+    public int get() {
+        return mState;
+    }
+
+    public boolean is(int state) {
+        return mState == state;
+    }
+
+    // Move to a new state. Returns false and stays put if the move isn't allowed.
+    public synchronized boolean moveTo(int next) {
+        if (!isAllowed(mState, next)) {
+            return false;
+        }
+        mState = next;
+        return true;
+    }
+
+    public static boolean isAllowed(int from, int to) {
+        switch (to) {
+            case NONE:
+                return from != NONE;
+            case CONNECTING:
+                return from == NONE;
+            case CONNECTED:
+                return from == CONNECTING;
+            default:
+                return false;
+        }
+    }
+}
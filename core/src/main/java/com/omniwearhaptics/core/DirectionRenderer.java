@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+import java.util.Arrays;
+
+/**
+ * Turns a direction into a frame of motor intensities, for the motor layout of one device
+ * type. Directions are in degrees: azimuth clockwise from the front, elevation up from the
+ * horizon.
+ *
+ * Each motor's weight falls off with the angle between the direction and the motor, reaching
+ * zero at SPREAD degrees, and the closest motor always gets the full intensity. The weights
+ * are worked out once per layout on a STEP degree grid, so rendering a direction is a table
+ * lookup and a scale.
+ *
+ * Renderers are immutable and shared, so they are safe to use from any thread.
+ */
+public class DirectionRenderer {
+
+    // Grid resolution and how far each motor's weight reaches, in degrees.
+    public static final int STEP = 5;
+    public static final int SPREAD = 60;
+
+    private static final int AZIMUTHS = 360 / STEP;
+    private static final int ELEVATIONS = 180 / STEP + 1;
+
+    // Device types, as the firmware reports them.
+    private static final int TYPE_CAP = 13;
+    private static final int TYPE_NECKBAND = 8;
+    private static final int TYPE_WRISTBAND = 1;
+
+    // Motor directions by device type, indexed by motor ID: {azimuth, elevation}. The cap has
+    // a ring of eight around the base, four half way up and one on top; the neckband a ring of
+    // eight; the wristband a single motor, which takes every direction.
+    private static final int[][] CAP_LAYOUT = {
+            {0, 0}, {180, 0}, {90, 0}, {270, 0}, {45, 0}, {315, 0}, {135, 0}, {225, 0},
+            {0, 45}, {180, 45}, {90, 45}, {270, 45},
+            {0, 90}};
+    private static final int[][] NECKBAND_LAYOUT = {
+            {0, 0}, {180, 0}, {90, 0}, {270, 0}, {45, 0}, {315, 0}, {135, 0}, {225, 0}};
+
+    private static DirectionRenderer sCap = null;
+    private static DirectionRenderer sNeckband = null;
+    private static DirectionRenderer sWristband = null;
+
+    private final int mMotors;
+
+    // Weight per grid cell and motor, 0 to 255, at
+    // [(elevation * AZIMUTHS + azimuth) * mMotors + motor].
+    private final byte[] mWeights;
+
+    // Build the table for motors at the given directions. Null means one motor that takes
+    // every direction.
+    private DirectionRenderer(int[][] layout) {
+        mMotors = layout == null ? 1 : layout.length;
+        mWeights = new byte[AZIMUTHS * ELEVATIONS * mMotors];
+        if (layout == null) {
+            Arrays.fill(mWeights, (byte) 255);
+            return;
+        }
+
+        // Motor directions as unit vectors.
+        double[][] motors = new double[mMotors][];
+        for (int i = 0; i < mMotors; i++) {
+            motors[i] = toVector(layout[i][0], layout[i][1]);
+        }
+
+        double minDot = Math.cos(Math.toRadians(SPREAD));
+        double[] weights = new double[mMotors];
+        for (int e = 0; e < ELEVATIONS; e++) {
+            for (int a = 0; a < AZIMUTHS; a++) {
+                double[] direction = toVector(a * STEP, e * STEP - 90);
+
+                // Linear falloff from the motor's own direction to SPREAD degrees away.
+                double max = -1;
+                int closest = 0;
+                for (int i = 0; i < mMotors; i++) {
+                    double dot = direction[0] * motors[i][0] + direction[1] * motors[i][1] +
+                            direction[2] * motors[i][2];
+                    weights[i] = Math.max(0, (dot - minDot) / (1 - minDot));
+                    if (dot > max) {
+                        max = dot;
+                        closest = i;
+                    }
+                }
+
+                // Normalize so the closest motor is at full strength. Directions out of every
+                // motor's reach, e.g. straight down, fall back to the closest one alone.
+                double scale = weights[closest] > 0 ? 1 / weights[closest] : 0;
+                int cell = (e * AZIMUTHS + a) * mMotors;
+                for (int i = 0; i < mMotors; i++) {
+                    double weight = scale > 0 ? Math.min(1, weights[i] * scale) : (i == closest ? 1 : 0);
+                    mWeights[cell + i] = (byte) Math.round(weight * 255);
+                }
+            }
+        }
+    }
+
+    // The renderer for a device type, or null if the type is unknown.
+    public static synchronized DirectionRenderer forDeviceType(int deviceType) {
+        switch (deviceType) {
+            case TYPE_CAP:
+                if (sCap == null) {
+                    sCap = new DirectionRenderer(CAP_LAYOUT);
+                }
+                return sCap;
+            case TYPE_NECKBAND:
+                if (sNeckband == null) {
+                    sNeckband = new DirectionRenderer(NECKBAND_LAYOUT);
+                }
+                return sNeckband;
+            case TYPE_WRISTBAND:
+                if (sWristband == null) {
+                    sWristband = new DirectionRenderer(null);
+                }
+                return sWristband;
+            default:
+                return null;
+        }
+    }
+
+    public int getMotorCount() {
+        return mMotors;
+    }
+
+    // Fill frame with the intensity of each motor for a direction. Elevation is clamped to
+    // straight up or down; any azimuth is accepted. Returns the number of motors written.
+    public int render(float azimuth, float elevation, int intensity, byte[] frame) {
+
+        int a = Math.round(azimuth / STEP) % AZIMUTHS;
+        if (a < 0) {
+            a += AZIMUTHS;
+        }
+        int e = Math.max(0, Math.min(ELEVATIONS - 1, Math.round((elevation + 90) / STEP)));
+
+        int cell = (e * AZIMUTHS + a) * mMotors;
+        int count = Math.min(mMotors, frame.length);
+        for (int i = 0; i < count; i++) {
+            frame[i] = (byte) (((mWeights[cell + i] & 0xff) * intensity + 127) / 255);
+        }
+        return count;
+    }
+
+    private static double[] toVector(double azimuth, double elevation) {
+        double a = Math.toRadians(azimuth);
+        double e = Math.toRadians(elevation);
+        return new double[] {Math.cos(e) * Math.cos(a), Math.cos(e) * Math.sin(a), Math.sin(e)};
+    }
+}
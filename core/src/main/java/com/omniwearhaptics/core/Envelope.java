@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+/**
+ * An intensity shape for one motor: straight-line segments between points, each an offset in
+ * milliseconds from the start and an intensity from 0 to 255. The intensity holds at the last
+ * point once the envelope is over.
+ */
+public class Envelope {
+
+    private final int[] mTimes;
+    private final int[] mLevels;
+
+    private Envelope(int[] times, int[] levels) {
+        mTimes = times;
+        mLevels = levels;
+    }
+
+    // Go from one intensity to another over durationMs.
+    public static Envelope ramp(int from, int to, int durationMs) {
+        return new Envelope(new int[] {0, durationMs}, new int[] {from, to});
+    }
+
+    // Rise to peak over attackMs, fall to sustain over decayMs, hold it for sustainMs, then
+    // fall to off over releaseMs.
+    public static Envelope adsr(int peak, int sustain, int attackMs, int decayMs, int sustainMs, int releaseMs) {
+        int decayEnd = attackMs + decayMs;
+        int sustainEnd = decayEnd + sustainMs;
+        return new Envelope(
+                new int[] {0, attackMs, decayEnd, sustainEnd, sustainEnd + releaseMs},
+                new int[] {0, peak, sustain, sustain, 0});
+    }
+
+    // Check the arguments describe a valid envelope. Returns null if so, otherwise the reason.
+    public static String validate(int... durationsMs) {
+        long total = 0;
+        for (int duration : durationsMs) {
+            if (duration < 0) {
+                return "negative envelope duration";
+            }
+            total += duration;
+        }
+        if (total > Integer.MAX_VALUE) {
+            return "envelope too long";
+        }
+        return null;
+    }
+
+    // Length in milliseconds.
+    public int getDuration() {
+        return mTimes[mTimes.length - 1];
+    }
+
+    // Intensity at t milliseconds from the start, rounded to the nearest step.
+    public int valueAt(long t) {
+        t = Math.max(t, 0);
+        int i = segmentAt(t);
+        if (i < 0) {
+            return mLevels[mLevels.length - 1];
+        }
+        long span = mTimes[i + 1] - mTimes[i];
+        long rise = mLevels[i + 1] - mLevels[i];
+        return mLevels[i] + (int) Math.round((double) (rise * (t - mTimes[i])) / span);
+    }
+
+    // When the intensity next changes after t, or -1 if it never does. Within a sloped
+    // segment that is t itself; within a flat one, its end.
+    public long nextChange(long t) {
+        t = Math.max(t, 0);
+        int i = segmentAt(t);
+        if (i < 0) {
+            return -1;
+        }
+        return mLevels[i] == mLevels[i + 1] ? mTimes[i + 1] : t;
+    }
+
+    // Index of the segment containing t, or -1 once t is past the end.
+    private int segmentAt(long t) {
+        for (int i = 0; i < mTimes.length - 1; i++) {
+            if (t < mTimes[i + 1]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+/**
+ * Plays an {@link Envelope} on each of a set of motors, sampling them at a fixed tick rate.
+ * Like {@link KeyframeTimeline} it holds no clock of its own: the caller passes the time in
+ * and schedules the next call.
+ *
+ * A motor is only reported when its intensity actually changes, and flat stretches of an
+ * envelope (e.g. the sustain of an ADSR) are skipped rather than ticked through, so the link
+ * only sees the writes that matter.
+ *
+ * Not thread safe.
+ */
+public class EnvelopeEngine {
+
+    public static final int DEFAULT_TICK_RATE = 100;
+    public static final int MAX_TICK_RATE = 1000;
+
+    private static final int NONE = -1;
+
+    // Per motor: the envelope playing, when it started and the last intensity reported.
+    private final Envelope[] mEnvelopes;
+    private final long[] mStartTimes;
+    private final int[] mLastValues;
+    private int mActive = 0;
+    private long mTickMs = 1000 / DEFAULT_TICK_RATE;
+
+    public EnvelopeEngine(int maxMotors) {
+        mEnvelopes = new Envelope[maxMotors];
+        mStartTimes = new long[maxMotors];
+        mLastValues = new int[maxMotors];
+    }
+
+    // How often sloped envelopes are sampled, per second.
+    public void setTickRate(int ticksPerSecond) {
+        mTickMs = Math.max(1, 1000 / Math.max(1, Math.min(ticksPerSecond, MAX_TICK_RATE)));
+    }
+
+    public int getTickRate() {
+        return (int) (1000 / mTickMs);
+    }
+
+    // Start an envelope on a motor, replacing any already playing there. Returns false if the
+    // motor is out of range.
+    public boolean start(int motorId, Envelope envelope, long now) {
+        if (motorId < 0 || motorId >= mEnvelopes.length) {
+            return false;
+        }
+        if (mEnvelopes[motorId] == null) {
+            mActive++;
+        }
+        mEnvelopes[motorId] = envelope;
+        mStartTimes[motorId] = now;
+        mLastValues[motorId] = NONE;
+        return true;
+    }
+
+    // Stop a motor's envelope. Returns false if none was playing.
+    public boolean stop(int motorId) {
+        if (motorId < 0 || motorId >= mEnvelopes.length || mEnvelopes[motorId] == null) {
+            return false;
+        }
+        mEnvelopes[motorId] = null;
+        mActive--;
+        return true;
+    }
+
+    public boolean isPlaying(int motorId) {
+        return motorId >= 0 && motorId < mEnvelopes.length && mEnvelopes[motorId] != null;
+    }
+
+    public boolean isIdle() {
+        return mActive == 0;
+    }
+
+    // Report every motor whose intensity changed by now. Returns when the next change can
+    // happen, or -1 once every envelope has finished.
+    public long advance(long now, KeyframeTimeline.Listener listener) {
+
+        long next = Long.MAX_VALUE;
+        for (int motor = 0; motor < mEnvelopes.length && mActive > 0; motor++) {
+            Envelope envelope = mEnvelopes[motor];
+            if (envelope == null) {
+                continue;
+            }
+
+            long t = now - mStartTimes[motor];
+            int value = envelope.valueAt(t);
+            if (value != mLastValues[motor]) {
+                mLastValues[motor] = value;
+                listener.onKeyframe((byte) motor, (byte) value);
+            }
+
+            // Sample a slope on the next tick, but never past the end of the envelope.
+            long change = envelope.nextChange(t);
+            if (change < 0) {
+                mEnvelopes[motor] = null;
+                mActive--;
+                continue;
+            }
+            long due = change == t ? Math.min(t + mTickMs, envelope.getDuration()) : change;
+            next = Math.min(next, mStartTimes[motor] + due);
+        }
+        return mActive == 0 ? -1 : next;
+    }
+
+    // Forget every envelope.
+    public void reset() {
+        for (int motor = 0; motor < mEnvelopes.length; motor++) {
+            mEnvelopes[motor] = null;
+        }
+        mActive = 0;
+    }
+}
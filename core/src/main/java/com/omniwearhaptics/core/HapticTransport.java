@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+/**
+ * The link a {@link CommandPipeline} writes motor commands over: a GATT connection on a
+ * phone, or a simulated device in the tests and benchmarks.
+ *
+ * Only one write is in flight at a time. The transport reports its completion to its
+ * Listener, which may be called on any thread.
+ */
+public interface HapticTransport {
+
+    interface Listener {
+
+        // The write in flight finished. For an unacknowledged write this only means the
+        // packet was taken by the controller.
+        void onWriteComplete(boolean success);
+    }
+
+    void setListener(Listener listener);
+
+    // Whether write(packet, false) is supported.
+    boolean canWriteWithoutResponse();
+
+    // Submit one packet to the haptic characteristic. Returns false if the link is busy or
+    // down, in which case the listener won't be called.
+    boolean write(byte[] packet, boolean acknowledged);
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+/**
+ * A vibration pattern: a list of keyframes, each setting one motor to an intensity at an
+ * offset in milliseconds from the start of the pattern. Keyframes are kept sorted by offset;
+ * the offset of the last keyframe is the length of one pass.
+ */
+public class KeyframePattern {
+
+    private final byte[] mMotorIds;
+    private final byte[] mIntensities;
+    private final int[] mOffsets;
+
+    // Copies and sorts the keyframes. Keyframes with the same offset keep their order.
+    public KeyframePattern(byte[] motorIds, byte[] intensities, int[] offsetsMs) {
+
+        int count = offsetsMs.length;
+        mMotorIds = new byte[count];
+        mIntensities = new byte[count];
+        mOffsets = new int[count];
+
+        // Insertion sort - patterns are short and usually sorted already.
+        for (int i = 0; i < count; i++) {
+            int j = i;
+            while (j > 0 && mOffsets[j - 1] > offsetsMs[i]) {
+                mMotorIds[j] = mMotorIds[j - 1];
+                mIntensities[j] = mIntensities[j - 1];
+                mOffsets[j] = mOffsets[j - 1];
+                j--;
+            }
+            mMotorIds[j] = motorIds[i];
+            mIntensities[j] = intensities[i];
+            mOffsets[j] = offsetsMs[i];
+        }
+    }
+
+    // Check the arrays describe a valid pattern. Returns null if so, otherwise the reason.
+    public static String validate(byte[] motorIds, byte[] intensities, int[] offsetsMs) {
+        if (motorIds == null || intensities == null || offsetsMs == null) {
+            return "keyframe arrays are null";
+        }
+        if (motorIds.length != intensities.length || motorIds.length != offsetsMs.length) {
+            return "keyframe arrays differ in length";
+        }
+        if (offsetsMs.length == 0) {
+            return "pattern is empty";
+        }
+        for (int offset : offsetsMs) {
+            if (offset < 0) {
+                return "negative keyframe offset";
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return mOffsets.length;
+    }
+
+    public byte getMotorId(int index) {
+        return mMotorIds[index];
+    }
+
+    public byte getIntensity(int index) {
+        return mIntensities[index];
+    }
+
+    public int getOffset(int index) {
+        return mOffsets[index];
+    }
+
+    // Length of one pass in milliseconds.
+    public int getDuration() {
+        return mOffsets[mOffsets.length - 1];
+    }
+}
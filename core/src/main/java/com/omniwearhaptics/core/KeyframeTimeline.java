@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+/**
+ * Decides which keyframes of a {@link KeyframePattern} are due at a given time. Holds no
+ * clock or thread of its own - the caller passes the time in and schedules the next call.
+ *
+ * Keyframes are scheduled against the time the pass started, not the time the previous
+ * keyframe fired, so late calls don't accumulate into drift.
+ *
+ * Not thread safe.
+ */
+public class KeyframeTimeline {
+
+    // Receives keyframes as they come due.
+    public interface Listener {
+        void onKeyframe(byte motorId, byte intensity);
+    }
+
+    private final KeyframePattern mPattern;
+    private final boolean mLoop;
+    private long mPassStartTime;
+    private int mNextKeyframe = 0;
+    private boolean mFinished = false;
+
+    // A pattern only loops if it has a non-zero duration.
+    public KeyframeTimeline(KeyframePattern pattern, boolean loop, long startTime) {
+        mPattern = pattern;
+        mLoop = loop && pattern.getDuration() > 0;
+        mPassStartTime = startTime;
+    }
+
+    public KeyframePattern getPattern() {
+        return mPattern;
+    }
+
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    // Time into the current pass.
+    public long getProgress(long now) {
+        return Math.min(now - mPassStartTime, mPattern.getDuration());
+    }
+
+    // Fire every keyframe due at now. Returns when the next one is due, or -1 if finished.
+    public long advance(long now, Listener listener) {
+
+        if (mFinished) {
+            return -1;
+        }
+        while (true) {
+
+            // Several keyframes can share an offset.
+            while (mNextKeyframe < mPattern.size() &&
+                    mPassStartTime + mPattern.getOffset(mNextKeyframe) <= now) {
+                listener.onKeyframe(mPattern.getMotorId(mNextKeyframe), mPattern.getIntensity(mNextKeyframe));
+                mNextKeyframe++;
+            }
+            if (mNextKeyframe < mPattern.size()) {
+                return mPassStartTime + mPattern.getOffset(mNextKeyframe);
+            }
+
+            // End of a pass.
+            if (!mLoop) {
+                mFinished = true;
+                return -1;
+            }
+            mPassStartTime += mPattern.getDuration();
+            mNextKeyframe = 0;
+
+            // Don't replay passes we slept through.
+            long behind = now - mPassStartTime;
+            if (behind > mPattern.getDuration()) {
+                mPassStartTime += (behind / mPattern.getDuration()) * mPattern.getDuration();
+            }
+        }
+    }
+}
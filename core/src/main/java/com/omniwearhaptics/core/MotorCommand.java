@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+/**
+ * A motor command packed into an int, and its encoding on the haptic characteristic.
+ *
+ * Packing is (motorId << 8) | intensity, so commands can be queued and passed around
+ * without allocating. On the wire a command is two bytes: motor ID, then intensity.
+ */
+public final class MotorCommand {
+
+    // Bytes per command on the haptic characteristic.
+    public static final int PACKET_SIZE = 2;
+
+    private MotorCommand() {
+    }
+
+    public static int pack(byte motorId, byte intensity) {
+        return (motorId << 8) | (intensity & 0xff);
+    }
+
+    public static byte motorOf(int command) {
+        return (byte) (command >> 8);
+    }
+
+    public static byte intensityOf(int command) {
+        return (byte) command;
+    }
+
+    // Write the packet for a command into out, which must hold PACKET_SIZE bytes.
+    public static void encode(int command, byte[] out) {
+        out[0] = motorOf(command);
+        out[1] = intensityOf(command);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+/**
+ * "Latest value wins" queue of motor commands waiting to be written to the device.
+ *
+ * Holds at most one pending intensity per motor. A newer value for a motor that is still
+ * waiting replaces the older one, so a burst of updates turns into the fewest writes needed
+ * and the final state always goes out. Motors are drained in the order they became pending.
+ *
+ * Not thread safe - callers synchronize on the queue.
+ */
+public class MotorCommandQueue {
+
+    // Marks a motor with nothing waiting to be written.
+    private static final int NO_VALUE = -1;
+
+    // Pending intensity per motor, or NO_VALUE.
+    private final int[] mPending;
+
+    // Last intensity requested per motor, or NO_VALUE if unknown.
+    private final int[] mTarget;
+
+    // Ring of motor IDs in the order they became pending.
+    private final byte[] mOrder;
+    private int mHead = 0;
+    private int mCount = 0;
+
+    // Counters.
+    private long mCoalescedCount = 0;
+    private long mDroppedCount = 0;
+
+    public MotorCommandQueue(int maxMotors) {
+        mPending = new int[maxMotors];
+        mTarget = new int[maxMotors];
+        mOrder = new byte[maxMotors];
+        for (int i = 0; i < maxMotors; i++) {
+            mPending[i] = NO_VALUE;
+            mTarget[i] = NO_VALUE;
+        }
+    }
+
+    // Add a command. Returns false if the motor ID is out of range and the command was dropped.
+    public boolean offer(byte motorId, byte intensity) {
+
+        // Error check.
+        if (motorId < 0 || motorId >= mPending.length) {
+            mDroppedCount++;
+            return false;
+        }
+
+        mTarget[motorId] = intensity & 0xff;
+
+        // Replace a value that hasn't gone out yet.
+        if (mPending[motorId] != NO_VALUE) {
+            mPending[motorId] = intensity & 0xff;
+            mCoalescedCount++;
+            return true;
+        }
+
+        // Otherwise join the back of the line.
+        mPending[motorId] = intensity & 0xff;
+        mOrder[(mHead + mCount) % mOrder.length] = motorId;
+        mCount++;
+        return true;
+    }
+
+    // Add a whole frame indexed by motor ID, queueing only the motors whose requested intensity
+    // changed. Returns the number of motors queued.
+    public int offerFrame(byte[] intensities, int motorCount) {
+        int count = Math.min(Math.min(intensities.length, motorCount), mPending.length);
+        int queued = 0;
+        for (int i = 0; i < count; i++) {
+            if (mTarget[i] != (intensities[i] & 0xff)) {
+                offer((byte) i, intensities[i]);
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    // Put back a command that could not be submitted. A newer pending value for the motor wins.
+    public void requeue(int command) {
+        byte motorId = MotorCommand.motorOf(command);
+        if (mPending[motorId] != NO_VALUE) {
+            mCoalescedCount++;
+            return;
+        }
+        mPending[motorId] = MotorCommand.intensityOf(command) & 0xff;
+        mHead = (mHead - 1 + mOrder.length) % mOrder.length;
+        mOrder[mHead] = motorId;
+        mCount++;
+    }
+
+    // Take the next command, packed as by MotorCommand.pack. Returns -1 if empty.
+    public int poll() {
+        if (mCount == 0) {
+            return -1;
+        }
+        byte motorId = mOrder[mHead];
+        mHead = (mHead + 1) % mOrder.length;
+        mCount--;
+        int intensity = mPending[motorId];
+        mPending[motorId] = NO_VALUE;
+        return MotorCommand.pack(motorId, (byte) intensity);
+    }
+
+    // Queue every motor's last requested intensity again, e.g. to rewrite the device's state.
+    public void refresh() {
+        for (int i = 0; i < mTarget.length; i++) {
+            refresh((byte) i);
+        }
+    }
+
+    // Queue one motor's last requested intensity again, unless it is unknown or a value is
+    // already pending.
+    public void refresh(byte motorId) {
+        if (mTarget[motorId] != NO_VALUE && mPending[motorId] == NO_VALUE) {
+            offer(motorId, (byte) mTarget[motorId]);
+        }
+    }
+
+    // Throw away everything that is pending, e.g. on disconnect. The device state is unknown
+    // afterwards, so the next frame is sent in full.
+    public void clear() {
+        for (int i = 0; i < mTarget.length; i++) {
+            mTarget[i] = NO_VALUE;
+        }
+        while (mCount > 0) {
+            mPending[mOrder[mHead]] = NO_VALUE;
+            mHead = (mHead + 1) % mOrder.length;
+            mCount--;
+            mDroppedCount++;
+        }
+        mHead = 0;
+    }
+
+    // Count a command that was lost after leaving the queue.
+    public void countDropped() {
+        mDroppedCount++;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    public long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded patterns by name, least recently played evicted first. The cache is bounded by the
+ * total number of keyframes it holds, which is what its memory use follows.
+ *
+ * Thread safe.
+ */
+public class PatternCache {
+
+    private final int mMaxKeyframes;
+    private int mKeyframes = 0;
+    private final LinkedHashMap<String, KeyframePattern> mPatterns = new LinkedHashMap<>(16, 0.75f, true);
+
+    public PatternCache(int maxKeyframes) {
+        mMaxKeyframes = maxKeyframes;
+    }
+
+    // Add a pattern, replacing any with the same name and evicting the least recently used
+    // until it fits. Returns false if the pattern is too big to cache at all.
+    public synchronized boolean put(String name, KeyframePattern pattern) {
+        if (pattern.size() > mMaxKeyframes) {
+            return false;
+        }
+        remove(name);
+        Iterator<Map.Entry<String, KeyframePattern>> eldest = mPatterns.entrySet().iterator();
+        while (mKeyframes + pattern.size() > mMaxKeyframes && eldest.hasNext()) {
+            mKeyframes -= eldest.next().getValue().size();
+            eldest.remove();
+        }
+        mPatterns.put(name, pattern);
+        mKeyframes += pattern.size();
+        return true;
+    }
+
+    // The pattern with this name, or null. Counts as a use.
+    public synchronized KeyframePattern get(String name) {
+        return mPatterns.get(name);
+    }
+
+    // Whether a pattern is cached, without counting as a use.
+    public synchronized boolean contains(String name) {
+        return mPatterns.containsKey(name);
+    }
+
+    public synchronized void remove(String name) {
+        KeyframePattern pattern = mPatterns.remove(name);
+        if (pattern != null) {
+            mKeyframes -= pattern.size();
+        }
+    }
+
+    public synchronized int size() {
+        return mPatterns.size();
+    }
+
+    public synchronized int getKeyframeCount() {
+        return mKeyframes;
+    }
+}
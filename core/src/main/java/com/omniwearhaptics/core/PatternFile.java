@@ -0,0 +1,164 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The binary pattern file format. A file is a header followed by frames, one every period:
+ *
+ *   magic "OWHP"      4 bytes
+ *   version           1 byte, VERSION
+ *   motor count       1 byte
+ *   frame period      2 bytes, milliseconds
+ *   frame count       4 bytes
+ *   frames            each a change count n (1 byte), then n (motor ID, intensity) pairs
+ *
+ * Multi-byte fields are big-endian. Each frame only lists the motors that changed since the
+ * previous one; every motor starts off. A frame with no changes holds the previous one.
+ * Motors left on by the last frame are turned off at the start of the pattern, so each pass
+ * of a loop starts from the same state as the first.
+ *
+ * Decoding reads straight from a buffer, e.g. a mapped file, into a {@link KeyframePattern}
+ * without allocating anything per frame.
+ */
+public class PatternFile {
+
+    public static final int MAGIC = 0x4f574850;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 12;
+
+    // Decode a pattern file. The buffer's position is left alone.
+    public static KeyframePattern decode(ByteBuffer buffer) throws IOException {
+
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (in.remaining() < HEADER_SIZE) {
+            throw new IOException("truncated header");
+        }
+        if (in.getInt() != MAGIC) {
+            throw new IOException("not a pattern file");
+        }
+        int version = in.get() & 0xff;
+        if (version != VERSION) {
+            throw new IOException("unsupported version " + version);
+        }
+        int motorCount = in.get() & 0xff;
+        int periodMs = in.getShort() & 0xffff;
+        long frameCount = in.getInt() & 0xffffffffL;
+        if (motorCount == 0 || periodMs == 0 || frameCount == 0) {
+            throw new IOException("empty pattern");
+        }
+        if (frameCount * periodMs > Integer.MAX_VALUE) {
+            throw new IOException("pattern too long");
+        }
+
+        // First pass: check the frames, count the changes, and note where each motor ends up
+        // and which motors the first frame sets.
+        int framesStart = in.position();
+        int changes = 0;
+        byte[] last = new byte[motorCount];
+        boolean[] setFirst = new boolean[motorCount];
+        for (long frame = 0; frame < frameCount; frame++) {
+            if (!in.hasRemaining()) {
+                throw new IOException("truncated frame " + frame);
+            }
+            int count = in.get() & 0xff;
+            if (in.remaining() < count * 2) {
+                throw new IOException("truncated frame " + frame);
+            }
+            for (int i = 0; i < count; i++) {
+                int motor = in.get() & 0xff;
+                if (motor >= motorCount) {
+                    throw new IOException("motor out of range in frame " + frame);
+                }
+                last[motor] = in.get();
+                setFirst[motor] |= frame == 0;
+            }
+            changes += count;
+        }
+
+        // A motor the last frame leaves on, and the first frame doesn't set, is turned off at
+        // the start. Otherwise the next pass of a loop would begin with it still on.
+        int resets = 0;
+        for (int motor = 0; motor < motorCount; motor++) {
+            if (last[motor] != 0 && !setFirst[motor]) {
+                resets++;
+            }
+        }
+
+        // Second pass: the resets, one keyframe per change, and one at the end of the last
+        // frame so a loop keeps the file's length. It repeats the last change, so it costs no
+        // write.
+        int size = resets + changes + 1;
+        byte[] motorIds = new byte[size];
+        byte[] intensities = new byte[size];
+        int[] offsets = new int[size];
+        int keyframe = 0;
+        for (int motor = 0; motor < motorCount; motor++) {
+            if (last[motor] != 0 && !setFirst[motor]) {
+
+                // Off at offset 0 - both already zero.
+                motorIds[keyframe] = (byte) motor;
+                keyframe++;
+            }
+        }
+        in.position(framesStart);
+        for (long frame = 0; frame < frameCount; frame++) {
+            int count = in.get() & 0xff;
+            for (int i = 0; i < count; i++) {
+                motorIds[keyframe] = in.get();
+                intensities[keyframe] = in.get();
+                offsets[keyframe] = (int) (frame * periodMs);
+                keyframe++;
+            }
+        }
+        if (keyframe > 0) {
+            motorIds[keyframe] = motorIds[keyframe - 1];
+            intensities[keyframe] = intensities[keyframe - 1];
+        }
+        offsets[keyframe] = (int) (frameCount * periodMs);
+        return new KeyframePattern(motorIds, intensities, offsets);
+    }
+
+    // Encode frames of intensities indexed by motor ID, one every periodMs.
+    public static byte[] encode(byte[][] frames, int motorCount, int periodMs) {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + frames.length);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC).put((byte) VERSION).put((byte) motorCount).putShort((short) periodMs)
+                .putInt(frames.length);
+        out.write(header.array(), 0, HEADER_SIZE);
+
+        byte[] previous = new byte[motorCount];
+        byte[] changes = new byte[motorCount * 2];
+        for (byte[] frame : frames) {
+            int count = 0;
+            for (int motor = 0; motor < motorCount; motor++) {
+                byte intensity = motor < frame.length ? frame[motor] : previous[motor];
+                if (intensity != previous[motor]) {
+                    changes[count * 2] = (byte) motor;
+                    changes[count * 2 + 1] = intensity;
+                    previous[motor] = intensity;
+                    count++;
+                }
+            }
+            out.write(count);
+            out.write(changes, 0, count * 2);
+        }
+        return out.toByteArray();
+    }
+}
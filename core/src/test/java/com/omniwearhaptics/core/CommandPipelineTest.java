@@ -0,0 +1,353 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The command pipeline driving a simulated device. Time is virtual, so every run is the same.
+ */
+public class CommandPipelineTest implements CommandPipeline.Listener, HapticTransport.Listener {
+
+    private static final int MOTORS = SimulatedDevice.TYPE_CAP;
+    private static final byte MOTOR = 2;
+
+    private SimulatedDevice mDevice;
+    private CommandPipeline mPipeline;
+
+    // Commands as they were submitted, and how many were acknowledged or not.
+    private final List<Integer> mSubmitted = new ArrayList<>();
+    private int mAcknowledged;
+    private int mUnacknowledged;
+
+    @Before
+    public void setUp() {
+        connect(MOTORS);
+    }
+
+    // Connect a pipeline with room for MOTORS motors to a device of the given type.
+    private void connect(int deviceType) {
+        mDevice = new SimulatedDevice(deviceType, SimulatedDevice.DEFAULT_INTERVAL_US, 42);
+        mPipeline = new CommandPipeline(MOTORS, this);
+        mDevice.setListener(this);
+        mDevice.setConnectionListener(new SimulatedDevice.ConnectionListener() {
+            @Override
+            public void onConnected() {
+                mPipeline.setTransport(mDevice);
+            }
+
+            @Override
+            public void onDisconnected() {
+                mPipeline.reset();
+            }
+        });
+        mDevice.connect();
+        mDevice.runUntilIdle();
+    }
+
+    @Test
+    public void burstForOneMotorCoalesces() {
+        for (int i = 1; i <= 100; i++) {
+            offer(MOTOR, i, false);
+        }
+        mDevice.runUntilIdle();
+
+        // The first value goes straight out; the rest wait behind it and only the last is sent.
+        assertEquals(100, mDevice.getIntensity(MOTOR));
+        assertEquals(2, mDevice.getWritesReceived());
+        assertEquals(98, mPipeline.getCoalescedCount());
+    }
+
+    @Test
+    public void valueTheDeviceHoldsIsNotWritten() {
+        send(MOTOR, 50, false);
+        send(MOTOR, 50, false);
+
+        assertEquals(1, mDevice.getWritesReceived());
+        assertEquals(1, mPipeline.getSuppressedCount());
+    }
+
+    @Test
+    public void forceRefreshRewritesHeldValues() {
+        send(MOTOR, 50, false);
+        mPipeline.forceRefresh();
+        mPipeline.pump();
+        mDevice.runUntilIdle();
+
+        assertEquals(2, mDevice.getWritesReceived());
+    }
+
+    @Test
+    public void streamingSpendsCreditsBetweenAcknowledgedWrites() {
+        mPipeline.setStreamingMode(true);
+
+        // The first write earns the credits, which then last for STREAM_CREDITS writes.
+        int writes = CommandPipeline.STREAM_CREDITS + 2;
+        for (int i = 0; i < writes; i++) {
+            send(i % MOTORS, i + 1, false);
+        }
+
+        assertEquals(2, mAcknowledged);
+        assertEquals(CommandPipeline.STREAM_CREDITS, mUnacknowledged);
+        assertEquals(writes, mDevice.getWritesReceived());
+    }
+
+    @Test
+    public void streamingAlwaysAcknowledgesOff() {
+        mPipeline.setStreamingMode(true);
+        send(MOTOR, 50, false);
+        send(MOTOR, 0, false);
+
+        assertEquals(2, mAcknowledged);
+        assertEquals(0, mUnacknowledged);
+    }
+
+    @Test
+    public void failedWriteStopsStreaming() {
+        mPipeline.setStreamingMode(true);
+        send(0, 50, false);
+        mDevice.failNextWrites(1);
+        send(1, 50, false);
+        send(2, 50, false);
+
+        // Acknowledged, then streamed and failed. The retry is acknowledged, which earns the
+        // credits back for the next.
+        assertEquals(1, mPipeline.getDroppedCount());
+        assertEquals(2, mAcknowledged);
+        assertEquals(2, mUnacknowledged);
+        assertEquals(50, mDevice.getIntensity(1));
+        assertEquals(50, mDevice.getIntensity(2));
+    }
+
+    @Test
+    public void failedWriteIsRetried() {
+        send(MOTOR, 50, false);
+        mDevice.failNextWrites(1);
+        send(MOTOR, 70, false);
+
+        assertEquals(70, mDevice.getIntensity(MOTOR));
+        assertEquals(1, mPipeline.getDroppedCount());
+
+        // The device holds the value, so the same request again is not written.
+        send(MOTOR, 70, false);
+        assertEquals(3, mDevice.getWritesReceived());
+    }
+
+    @Test
+    public void failedUrgentWriteIsRetried() {
+        mDevice.failNextWrites(1);
+        send(MOTOR, 255, true);
+
+        assertEquals(255, mDevice.getIntensity(MOTOR));
+        assertEquals(1, mPipeline.getDroppedCount());
+    }
+
+    @Test
+    public void failedWriteYieldsToNewerCommand() {
+        mDevice.failNextWrites(1);
+        offer(MOTOR, 10, false);
+        offer(MOTOR, 20, false);
+        mDevice.runUntilIdle();
+
+        assertEquals(20, mDevice.getIntensity(MOTOR));
+        assertEquals(2, mDevice.getWritesReceived());
+    }
+
+    @Test
+    public void writeThatAlwaysFailsDoesNotBlockOtherMotors() {
+        connect(SimulatedDevice.TYPE_NECKBAND);
+
+        // The neckband has no motor 10, so every write to it fails.
+        offer(10, 255, true);
+        offer(MOTOR, 255, true);
+        offer(3, 50, false);
+        mDevice.runUntilIdle();
+
+        assertEquals(1 + CommandPipeline.MAX_RETRIES, mDevice.getWritesFailed());
+        assertEquals(255, mDevice.getIntensity(MOTOR));
+        assertEquals(50, mDevice.getIntensity(3));
+    }
+
+    @Test
+    public void urgentGoesAheadOfQueuedAmbient() {
+
+        // Motor 0 goes out at once; the rest of the frame waits behind it.
+        byte[] frame = new byte[MOTORS];
+        for (int i = 0; i < MOTORS; i++) {
+            frame[i] = 100;
+        }
+        mPipeline.getQueue().offerFrame(frame, MOTORS);
+        mPipeline.pump();
+        offer(MOTOR, 255, true);
+        mDevice.runUntilIdle();
+
+        assertEquals(MotorCommand.pack(MOTOR, (byte) 255), (int) mSubmitted.get(1));
+        assertEquals(255, mDevice.getIntensity(MOTOR));
+    }
+
+    @Test
+    public void urgentClaimHoldsAmbientUntilReleased() {
+        send(MOTOR, 255, true);
+        send(MOTOR, 40, false);
+        send(MOTOR, 60, false);
+        assertEquals(255, mDevice.getIntensity(MOTOR));
+
+        // Releasing the motor sends the newest ambient value that was held back.
+        send(MOTOR, 0, true);
+        assertEquals(60, mDevice.getIntensity(MOTOR));
+    }
+
+    @Test
+    public void releaseRestoresAmbientValueFromBeforeTheClaim() {
+        byte[] frame = new byte[MOTORS];
+        frame[MOTOR] = 80;
+        mPipeline.getQueue().offerFrame(frame, MOTORS);
+        schedulePump(mPipeline.pump());
+        mDevice.runUntilIdle();
+
+        // No ambient traffic during the alert.
+        send(MOTOR, 255, true);
+        send(MOTOR, 0, true);
+        assertEquals(80, mDevice.getIntensity(MOTOR));
+
+        // The same frame again is still a no-op, and the motor stays where it was.
+        assertEquals(0, mPipeline.getQueue().offerFrame(frame, MOTORS));
+        mDevice.runUntilIdle();
+        assertEquals(80, mDevice.getIntensity(MOTOR));
+    }
+
+    @Test
+    public void releaseWithoutAmbientHistoryLeavesMotorOff() {
+        send(MOTOR, 255, true);
+        send(MOTOR, 0, true);
+
+        assertEquals(0, mDevice.getIntensity(MOTOR));
+        assertEquals(2, mDevice.getWritesReceived());
+    }
+
+    @Test
+    public void disconnectForgetsEverything() {
+        send(MOTOR, 50, false);
+        mDevice.disconnect();
+        mDevice.connect();
+        mDevice.runUntilIdle();
+
+        // The device state is unknown after a reconnect, so the same value is written again.
+        send(MOTOR, 50, false);
+        assertEquals(2, mDevice.getWritesReceived());
+    }
+
+    @Test
+    public void rateControllerHalvesOnFailure() {
+        pace();
+        send(0, 50, false);
+        mDevice.failNextWrites(1);
+        send(1, 50, false);
+
+        assertEquals(AimdRateController.INITIAL_RATE / 2, mPipeline.getRateLimit(), 1e-9);
+    }
+
+    @Test
+    public void rateControllerFollowsTheLink() {
+
+        // Streamed, the link takes a write every connection event, faster than INITIAL_RATE.
+        pace();
+        mPipeline.setStreamingMode(true);
+        streamFrames(5000000);
+        double clean = mPipeline.getRateLimit();
+
+        // One write in twenty fails.
+        mDevice.setFailureRate(0.05);
+        streamFrames(5000000);
+        double lossy = mPipeline.getRateLimit();
+
+        assertTrue("clean link grew to " + clean, clean > AimdRateController.INITIAL_RATE);
+        assertTrue("lossy link fell to " + lossy, lossy < AimdRateController.INITIAL_RATE / 2);
+    }
+
+    // Pace the ambient lane by the simulated clock.
+    private void pace() {
+        mPipeline.setRateController(new AimdRateController(), new Clock() {
+            @Override
+            public long nanoTime() {
+                return mDevice.now() * 1000;
+            }
+        });
+    }
+
+    // Feed frames that change every motor at 60 Hz for a while. No motor is turned off, so
+    // in streaming mode most writes can go unacknowledged.
+    private void streamFrames(long durationUs) {
+        long end = mDevice.now() + durationUs;
+        byte[] frame = new byte[MOTORS];
+        for (int tick = 0; mDevice.now() < end; tick++) {
+            for (int m = 0; m < MOTORS; m++) {
+                frame[m] = (byte) (1 + (m * 40 + tick * 16) % 255);
+            }
+            mPipeline.getQueue().offerFrame(frame, MOTORS);
+            schedulePump(mPipeline.pump());
+            mDevice.advance(16667);
+        }
+    }
+
+    // Queue a command and pump, as the service does.
+    private void offer(int motorId, int intensity, boolean urgent) {
+        mPipeline.offer((byte) motorId, (byte) intensity, urgent);
+        schedulePump(mPipeline.pump());
+    }
+
+    // Queue a command and run the link until it is idle.
+    private void send(int motorId, int intensity, boolean urgent) {
+        offer(motorId, intensity, urgent);
+        mDevice.runUntilIdle();
+    }
+
+    // The pipeline is waiting on the rate limit: pump again once it allows.
+    private void schedulePump(long delayNanos) {
+        if (delayNanos > 0) {
+            mDevice.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    schedulePump(mPipeline.pump());
+                }
+            }, (delayNanos + 999) / 1000);
+        }
+    }
+
+    @Override
+    public void onSubmitted(int command, boolean acknowledged) {
+        mSubmitted.add(command);
+        if (acknowledged) {
+            mAcknowledged++;
+        } else {
+            mUnacknowledged++;
+        }
+    }
+
+    @Override
+    public void onCompleted(int command, boolean acknowledged, boolean success) {
+    }
+
+    @Override
+    public void onWriteComplete(boolean success) {
+        schedulePump(mPipeline.onWriteComplete(success));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MotorCommandQueueTest {
+
+    private final MotorCommandQueue mQueue = new MotorCommandQueue(4);
+
+    @Test
+    public void newerValueReplacesPendingOne() {
+        mQueue.offer((byte) 1, (byte) 10);
+        mQueue.offer((byte) 2, (byte) 20);
+        mQueue.offer((byte) 1, (byte) 30);
+
+        // Motor 1 keeps its place in line with the newest value.
+        assertEquals(MotorCommand.pack((byte) 1, (byte) 30), mQueue.poll());
+        assertEquals(MotorCommand.pack((byte) 2, (byte) 20), mQueue.poll());
+        assertEquals(-1, mQueue.poll());
+        assertEquals(1, mQueue.getCoalescedCount());
+    }
+
+    @Test
+    public void outOfRangeMotorIsDropped() {
+        assertFalse(mQueue.offer((byte) 4, (byte) 10));
+        assertFalse(mQueue.offer((byte) -1, (byte) 10));
+        assertTrue(mQueue.isEmpty());
+        assertEquals(2, mQueue.getDroppedCount());
+    }
+
+    @Test
+    public void frameOnlyQueuesChangedMotors() {
+        byte[] frame = {10, 20, 30, 40};
+        assertEquals(4, mQueue.offerFrame(frame, 4));
+        drain();
+
+        frame[2] = 35;
+        assertEquals(1, mQueue.offerFrame(frame, 4));
+        assertEquals(MotorCommand.pack((byte) 2, (byte) 35), mQueue.poll());
+    }
+
+    @Test
+    public void requeueGoesFirstUnlessNewerValueIsPending() {
+        mQueue.offer((byte) 1, (byte) 10);
+        mQueue.offer((byte) 2, (byte) 20);
+        int command = mQueue.poll();
+
+        mQueue.requeue(command);
+        assertEquals(command, mQueue.poll());
+
+        mQueue.offer((byte) 1, (byte) 50);
+        mQueue.requeue(command);
+        assertEquals(MotorCommand.pack((byte) 2, (byte) 20), mQueue.poll());
+        assertEquals(MotorCommand.pack((byte) 1, (byte) 50), mQueue.poll());
+    }
+
+    @Test
+    public void refreshQueuesLastRequestedValues() {
+        mQueue.offer((byte) 0, (byte) 10);
+        mQueue.offer((byte) 3, (byte) 40);
+        drain();
+
+        mQueue.refresh();
+        assertEquals(MotorCommand.pack((byte) 0, (byte) 10), mQueue.poll());
+        assertEquals(MotorCommand.pack((byte) 3, (byte) 40), mQueue.poll());
+        assertTrue(mQueue.isEmpty());
+    }
+
+    @Test
+    public void clearForgetsRequestedValues() {
+        byte[] frame = {10, 20, 30, 40};
+        mQueue.offerFrame(frame, 4);
+        mQueue.clear();
+
+        assertTrue(mQueue.isEmpty());
+        assertEquals(4, mQueue.getDroppedCount());
+        assertEquals(4, mQueue.offerFrame(frame, 4));
+    }
+
+    private void drain() {
+        while (mQueue.poll() >= 0) {
+        }
+    }
+}
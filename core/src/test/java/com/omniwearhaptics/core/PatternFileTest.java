@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PatternFileTest {
+
+    private static final int MOTORS = 3;
+    private static final int PERIOD_MS = 20;
+
+    // Motor 1 pulses; motor 2 comes on in the second frame and is still on at the end.
+    private static final byte[][] FRAMES = {
+            {0, 100, 0},
+            {0, 100, 50},
+            {0, 0, 50},
+            {30, 0, 50},
+    };
+
+    @Test
+    public void roundTripPlaysEveryFrame() throws IOException {
+        assertEquals(FRAMES.length * PERIOD_MS, decode(FRAMES).getDuration());
+        assertPlays(FRAMES, false, 1);
+    }
+
+    @Test
+    public void loopingPatternStartsEachPassFromTheFirstFrame() throws IOException {
+        assertPlays(FRAMES, true, 3);
+    }
+
+    @Test
+    public void motorSetByTheFirstFrameIsNotReset() throws IOException {
+        byte[][] frames = {
+                {70, 0, 0},
+                {70, 10, 0},
+        };
+
+        // A reset for motor 1, two changes and the closing keyframe. Motor 0 is also on at the
+        // end, but the first frame sets it anyway.
+        assertEquals(4, decode(frames).size());
+        assertPlays(frames, true, 2);
+    }
+
+    @Test
+    public void patternThatEndsOffHasNoResets() throws IOException {
+        byte[][] frames = {
+                {0, 90, 0},
+                {0, 0, 0},
+        };
+        assertEquals(3, decode(frames).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFileIsRejected() throws IOException {
+        byte[] file = PatternFile.encode(FRAMES, MOTORS, PERIOD_MS);
+        PatternFile.decode(ByteBuffer.wrap(file, 0, file.length - 1).slice());
+    }
+
+    @Test(expected = IOException.class)
+    public void wrongMagicIsRejected() throws IOException {
+        byte[] file = PatternFile.encode(FRAMES, MOTORS, PERIOD_MS);
+        file[0] = 'X';
+        PatternFile.decode(ByteBuffer.wrap(file));
+    }
+
+    private static KeyframePattern decode(byte[][] frames) throws IOException {
+        return PatternFile.decode(ByteBuffer.wrap(PatternFile.encode(frames, MOTORS, PERIOD_MS)));
+    }
+
+    // Encode and decode the frames, play passes of the pattern, and check the motors match
+    // each frame at its time.
+    private static void assertPlays(byte[][] frames, boolean loop, int passes) throws IOException {
+        KeyframePattern pattern = decode(frames);
+        final byte[] motors = new byte[MOTORS];
+        KeyframeTimeline.Listener listener = new KeyframeTimeline.Listener() {
+            @Override
+            public void onKeyframe(byte motorId, byte intensity) {
+                motors[motorId] = intensity;
+            }
+        };
+
+        KeyframeTimeline timeline = new KeyframeTimeline(pattern, loop, 0);
+        for (int pass = 0; pass < passes; pass++) {
+            for (int frame = 0; frame < frames.length; frame++) {
+                timeline.advance(pass * pattern.getDuration() + frame * PERIOD_MS, listener);
+                assertArrayEquals("pass " + pass + " frame " + frame, frames[frame], motors);
+            }
+        }
+    }
+}
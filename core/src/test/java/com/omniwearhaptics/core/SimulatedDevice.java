@@ -0,0 +1,310 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.omniwearhaptics.core;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * An OmniWear device simulated in process, for driving a {@link CommandPipeline} without a
+ * phone or a radio. Used by the tests and the benchmarks.
+ *
+ * Time is virtual: nothing happens until advance() is called, so a run is repeatable. The
+ * link is paced by the connection interval. A packet goes out at the next connection
+ * event; an acknowledged write completes one interval later, when the response comes back,
+ * and an unacknowledged write completes once the controller has sent it.
+ *
+ * Models the two characteristics the service uses: the device type on the device info
+ * service (read as a decimal string, like the firmware) and the haptic characteristic,
+ * which sets motor motorId to an intensity. Failed writes and disconnects can be injected.
+ *
+ * Not thread safe - drive it from one thread.
+ */
+public class SimulatedDevice implements HapticTransport {
+
+    // Device types the firmware reports.
+    public static final int TYPE_WRISTBAND = 1;
+    public static final int TYPE_NECKBAND = 8;
+    public static final int TYPE_CAP = 13;
+
+    // Connection interval used if none is given: 7.5 ms, the shortest BLE allows.
+    public static final long DEFAULT_INTERVAL_US = 7500;
+
+    // Connection events it takes to connect.
+    private static final int CONNECT_EVENTS = 6;
+
+    // Connection events.
+    public interface ConnectionListener {
+        void onConnected();
+        void onDisconnected();
+    }
+
+    private final int mDeviceType;
+    private final long mIntervalUs;
+    private final Random mRandom;
+    private final int[] mIntensities;
+    private HapticTransport.Listener mListener = null;
+    private ConnectionListener mConnectionListener = null;
+
+    // Virtual clock and the events waiting on it.
+    private long mNow = 0;
+    private long mNextSeq = 0;
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+
+    // Link state.
+    private boolean mConnected = false;
+    private boolean mWriteInFlight = false;
+    private int mConnection = 0;
+
+    // Injected failures.
+    private int mFailNext = 0;
+    private double mFailureRate = 0;
+
+    // Counters.
+    private long mWritesReceived = 0;
+    private long mWritesAcknowledged = 0;
+    private long mWritesFailed = 0;
+
+    public SimulatedDevice(int deviceType) {
+        this(deviceType, DEFAULT_INTERVAL_US, 0);
+    }
+
+    // The seed decides which writes fail at a given failure rate.
+    public SimulatedDevice(int deviceType, long intervalUs, long seed) {
+        if (deviceType != TYPE_WRISTBAND && deviceType != TYPE_NECKBAND && deviceType != TYPE_CAP) {
+            throw new IllegalArgumentException("Unknown device type " + deviceType);
+        }
+        if (intervalUs <= 0) {
+            throw new IllegalArgumentException("Interval must be positive");
+        }
+        mDeviceType = deviceType;
+        mIntervalUs = intervalUs;
+        mRandom = new Random(seed);
+        mIntensities = new int[deviceType];
+    }
+
+    @Override
+    public void setListener(HapticTransport.Listener listener) {
+        mListener = listener;
+    }
+
+    public void setConnectionListener(ConnectionListener listener) {
+        mConnectionListener = listener;
+    }
+
+    // Virtual time in microseconds.
+    public long now() {
+        return mNow;
+    }
+
+    public long getIntervalUs() {
+        return mIntervalUs;
+    }
+
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    // Start connecting. onConnected follows a few connection events later.
+    public void connect() {
+        if (mConnected) {
+            return;
+        }
+        final int connection = ++mConnection;
+        schedule(nextEvent(mNow) + (CONNECT_EVENTS - 1) * mIntervalUs, new Runnable() {
+            @Override
+            public void run() {
+                if (connection != mConnection) {
+                    return;
+                }
+                mConnected = true;
+                if (mConnectionListener != null) {
+                    mConnectionListener.onConnected();
+                }
+            }
+        });
+    }
+
+    // Drop the link, e.g. the wearer walked out of range. A write in flight never completes.
+    public void disconnect() {
+        mConnection++;
+        boolean wasConnected = mConnected;
+        mConnected = false;
+        mWriteInFlight = false;
+        if (wasConnected && mConnectionListener != null) {
+            mConnectionListener.onDisconnected();
+        }
+    }
+
+    // Drop the link at a virtual time.
+    public void disconnectAt(long timeUs) {
+        schedule(timeUs, new Runnable() {
+            @Override
+            public void run() {
+                disconnect();
+            }
+        });
+    }
+
+    // Fail the next count writes.
+    public void failNextWrites(int count) {
+        mFailNext = count;
+    }
+
+    // Fail writes at random with this probability (0-1).
+    public void setFailureRate(double rate) {
+        mFailureRate = rate;
+    }
+
+    // The device info service's device type characteristic.
+    public String readDeviceType() {
+        return Integer.toString(mDeviceType);
+    }
+
+    public int getDeviceType() {
+        return mDeviceType;
+    }
+
+    // Intensity a motor is running at, 0-255.
+    public int getIntensity(int motorId) {
+        return mIntensities[motorId];
+    }
+
+    public long getWritesReceived() {
+        return mWritesReceived;
+    }
+
+    public long getWritesAcknowledged() {
+        return mWritesAcknowledged;
+    }
+
+    public long getWritesFailed() {
+        return mWritesFailed;
+    }
+
+    @Override
+    public boolean canWriteWithoutResponse() {
+        return true;
+    }
+
+    @Override
+    public boolean write(byte[] packet, final boolean acknowledged) {
+
+        if (!mConnected || mWriteInFlight || packet.length != MotorCommand.PACKET_SIZE) {
+            return false;
+        }
+        mWriteInFlight = true;
+        final byte motorId = packet[0];
+        final byte intensity = packet[1];
+        final int connection = mConnection;
+
+        // Sent at the next connection event, answered at the one after.
+        long sent = nextEvent(mNow);
+        schedule(acknowledged ? sent + mIntervalUs : sent, new Runnable() {
+            @Override
+            public void run() {
+                if (connection != mConnection) {
+                    return;
+                }
+                deliver(motorId, intensity, acknowledged);
+            }
+        });
+        return true;
+    }
+
+    // Run an action delayUs from now on the virtual clock, e.g. a pump the pipeline asked for.
+    public void postDelayed(Runnable action, long delayUs) {
+        schedule(mNow + delayUs, action);
+    }
+
+    // Run everything due up to now + us.
+    public void advance(long us) {
+        advanceTo(mNow + us);
+    }
+
+    public void advanceTo(long timeUs) {
+        Event event;
+        while ((event = mEvents.peek()) != null && event.time <= timeUs) {
+            mEvents.poll();
+            mNow = Math.max(mNow, event.time);
+            event.action.run();
+        }
+        mNow = Math.max(mNow, timeUs);
+    }
+
+    // Run until nothing more is scheduled. Returns the virtual time reached.
+    public long runUntilIdle() {
+        Event event;
+        while ((event = mEvents.poll()) != null) {
+            mNow = Math.max(mNow, event.time);
+            event.action.run();
+        }
+        return mNow;
+    }
+
+    private void deliver(byte motorId, byte intensity, boolean acknowledged) {
+        mWritesReceived++;
+        boolean success = motorId >= 0 && motorId < mDeviceType && !injectFailure();
+        if (success) {
+            mIntensities[motorId] = intensity & 0xff;
+            if (acknowledged) {
+                mWritesAcknowledged++;
+            }
+        } else {
+            mWritesFailed++;
+        }
+        mWriteInFlight = false;
+        if (mListener != null) {
+            mListener.onWriteComplete(success);
+        }
+    }
+
+    private boolean injectFailure() {
+        if (mFailNext > 0) {
+            mFailNext--;
+            return true;
+        }
+        return mFailureRate > 0 && mRandom.nextDouble() < mFailureRate;
+    }
+
+    // First connection event strictly after a time.
+    private long nextEvent(long timeUs) {
+        return (timeUs / mIntervalUs + 1) * mIntervalUs;
+    }
+
+    private void schedule(long timeUs, Runnable action) {
+        mEvents.add(new Event(timeUs, mNextSeq++, action));
+    }
+
+    // Events at the same time run in the order they were scheduled.
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long seq;
+        final Runnable action;
+
+        Event(long time, long seq, Runnable action) {
+            this.time = time;
+            this.seq = seq;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+}